@@ -0,0 +1,133 @@
+package com.vrublack.nutrition.console;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads a resource on a background thread so that the console can already accept commands that don't need it.
+ * Commands that do need it call get(), which blocks and shows a progress indicator until the resource is ready.
+ */
+public abstract class BackgroundLoader<T>
+{
+    // how often the progress indicator is refreshed while waiting
+    private final static long PROGRESS_INTERVAL_MS = 250;
+
+    private final String description;
+
+    private final FutureTask<T> task;
+
+    // fraction in [0, 1] or -1 if the loader doesn't report progress
+    private volatile float progress = -1;
+
+    /**
+     * @param description Shown to the user while waiting, e.g. "Loading USDA database"
+     */
+    public BackgroundLoader(String description)
+    {
+        this.description = description;
+        this.task = new FutureTask<>(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                return load();
+            }
+        });
+    }
+
+    /**
+     * @return Loader that is already done and returns value
+     */
+    public static <T> BackgroundLoader<T> ready(final T value)
+    {
+        BackgroundLoader<T> loader = new BackgroundLoader<T>("")
+        {
+            @Override
+            protected T load()
+            {
+                return value;
+            }
+        };
+        loader.task.run();
+        return loader;
+    }
+
+    /**
+     * Does the actual work. Runs on a background thread.
+     */
+    protected abstract T load() throws Exception;
+
+    /**
+     * Can be called from load() to update the progress indicator
+     *
+     * @param progress Fraction in [0, 1]
+     */
+    protected void publishProgress(float progress)
+    {
+        this.progress = Math.min(1, progress);
+    }
+
+    /**
+     * Starts loading on a daemon thread, so the application can still quit while loading
+     *
+     * @return this
+     */
+    public BackgroundLoader<T> start()
+    {
+        Thread thread = new Thread(task, description);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public boolean isReady()
+    {
+        return task.isDone();
+    }
+
+    /**
+     * Blocks until the resource is loaded. If it isn't ready yet, a progress indicator is printed while waiting.
+     *
+     * @throws IllegalStateException If loading failed
+     */
+    public T get()
+    {
+        try
+        {
+            if (task.isDone())
+                return task.get();
+
+            String lastIndicator = null;
+            while (true)
+            {
+                try
+                {
+                    T result = task.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (lastIndicator != null)
+                        System.out.println("\r" + description + "... done");
+                    return result;
+                } catch (TimeoutException e)
+                {
+                    String indicator = description + "... ";
+                    if (progress >= 0)
+                        indicator += Math.round(progress * 100) + "%";
+                    if (!indicator.equals(lastIndicator))
+                    {
+                        System.out.print("\r" + indicator);
+                        lastIndicator = indicator;
+                    }
+                }
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(description + " was interrupted", e);
+        } catch (ExecutionException e)
+        {
+            throw new IllegalStateException(description + " failed", e.getCause());
+        }
+    }
+}
@@ -4,16 +4,16 @@ package com.vrublack.nutrition.console;
 import com.Config;
 import com.vrublack.nutrition.core.*;
 import com.vrublack.nutrition.core.Formatter;
+import com.vrublack.nutrition.core.fatsecret.FatSecretMirror;
 import com.vrublack.nutrition.core.fatsecret.FatsecretAPI;
+import com.vrublack.nutrition.core.search.CanonicalSearchHistory;
 import com.vrublack.nutrition.core.userdb.UserFoodDatabase;
 import com.vrublack.nutrition.core.userdb.UserFoodItem;
 import org.ini4j.Ini;
 import org.ini4j.Profile;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -22,24 +22,81 @@ public class Console
 {
     private final static String INI_FILENAME = "preferences.ini";
 
-    private RecordManager recordManager = new LocalRecordManager();
+    // max amount of search results that will be shown to the user
+    private final static int MAX_SEARCH_RESULTS = 50;
+
+    private final static String FATSECRET_MIRROR_FILENAME = "fatsecret_mirror";
+
+    // finds the items of stored records in the database they are from
+    private final FoodItemResolver foodItemResolver = new FoodItemResolver()
+    {
+        @Override
+        public String getSource(FoodItem item)
+        {
+            return RecordCodec.getSource(item);
+        }
+
+        @Override
+        public FoodItem resolve(String source, String id)
+        {
+            switch (source)
+            {
+                case RecordCodec.SOURCE_USDA:
+                    return getUSDADatabase().get(id);
+                case RecordCodec.SOURCE_USER:
+                    return userFoodDatabase.get().get(id);
+                case RecordCodec.SOURCE_FATSECRET:
+                    // only available if FatSecret is the current data source, since it needs credentials
+                    SyncFoodDataSource current = dataSource != null ? dataSource.get() : null;
+                    return current instanceof FatSecretMirror ? current.get(id) : null;
+                default:
+                    return null;
+            }
+        }
+    };
+
+    private RecordManager recordManager = createRecordManager(foodItemResolver);
     private DailyRecord dailyRecord = recordManager.getRecordForToday(RecordManager.getSimpleCalendar(new GregorianCalendar()));
 
-    private SyncFoodDataSource dataSource;
+    // the databases are loaded in the background so that commands which don't search can be used right away
+    private BackgroundLoader<SyncFoodDataSource> dataSource;
+
+    // only loaded separately if items of old records are needed while another data source is used
+    private BackgroundLoader<SyncFoodDataSource> usdaDatabase;
 
-    private LocalUserFoodDatabase userFoodDatabase = new LocalUserFoodDatabase();
+    private BackgroundLoader<LocalUserFoodDatabase> userFoodDatabase = new BackgroundLoader<LocalUserFoodDatabase>("Loading user database")
+    {
+        @Override
+        protected LocalUserFoodDatabase load()
+        {
+            return new LocalUserFoodDatabase();
+        }
+    }.start();
 
     private Stack<DailyRecord.Memento> mementoStack = new Stack<>();
 
     private TextFormatter formatter;
 
-    private SearchHistory history = LocalSearchHistory.getInstance();
+    // selections are looked up by the canonical form of the query, which needs the dictionary
+    private final BackgroundLoader<SearchHistory> history = new BackgroundLoader<SearchHistory>("Loading search history")
+    {
+        @Override
+        protected SearchHistory load() throws Exception
+        {
+            LocalSearchHistory localHistory = LocalSearchHistory.getInstance();
+            return new CanonicalSearchHistory(localHistory, LocalUSDAFoodDatabase.getSharedDescriptionBase(),
+                    localHistory.getStats());
+        }
+    }.start();
 
     private boolean autoreport;
 
 
     public static void main(String[] args)
     {
+        // the dictionary can be loaded while the other databases are being parsed
+        LocalUSDAFoodDatabase.preloadDescriptionBase();
+
         Console console = new Console();
 
         if (args.length == 1)
@@ -48,7 +105,7 @@ public class Console
             System.out.println("Invalid number of arguments. You can specify the food source by \"usda\" or \"fatsecret\"");
 
         if (console.dataSource == null)
-            console.dataSource = new LocalUSDAFoodDatabase();
+            console.dataSource = loadUSDADatabase();
 
 
         console.readIniFile();
@@ -56,6 +113,62 @@ public class Console
         console.startInputLoop();
     }
 
+    /**
+     * @return Record manager for the store that is selected in the preferences
+     */
+    static RecordManager createRecordManager(FoodItemResolver resolver)
+    {
+        return createRecordManager(resolver, false);
+    }
+
+    /**
+     * @param readOnly If set, the records are only read, e.g. for an export: old records aren't converted and the
+     *                 records folder isn't imported into an empty log, which is read from the folder instead
+     */
+    static RecordManager createRecordManager(FoodItemResolver resolver, boolean readOnly)
+    {
+        String store = null;
+        try
+        {
+            Ini.Section records = new Ini(new File(INI_FILENAME)).get("records");
+            if (records != null)
+                store = records.get("store");
+        } catch (IOException e)
+        {
+            // no preferences yet
+        }
+
+        RecordManager recordManager = null;
+        if ("log".equals(store) && (!readOnly || new File(LogRecordManager.DEFAULT_FILE).exists()))
+        {
+            try
+            {
+                LogRecordManager logRecordManager = new LogRecordManager(new File(LogRecordManager.DEFAULT_FILE),
+                        resolver, readOnly);
+                if (logRecordManager.size() == 0 && !readOnly)
+                {
+                    int imported = logRecordManager.importRecords(new LocalRecordManager(resolver));
+                    if (imported > 0)
+                        System.out.println("Imported " + imported + " records into " + LogRecordManager.DEFAULT_FILE);
+                }
+                // an empty log hasn't been imported into yet
+                if (logRecordManager.size() > 0 || !readOnly)
+                    recordManager = logRecordManager;
+            } catch (IOException e)
+            {
+                System.err.println("Couldn't open " + LogRecordManager.DEFAULT_FILE + ", using the records folder");
+            }
+        }
+
+        if (recordManager == null)
+            recordManager = new LocalRecordManager(resolver, readOnly);
+
+        // commands don't wait for records to be written
+        if (!readOnly)
+            recordManager.setWriteDelay(RecordManager.DEFAULT_WRITE_DELAY_MS);
+        return recordManager;
+    }
+
     private void readIniFile()
     {
         List<Specification.NutrientType> nutrientTypes = null;
@@ -192,6 +305,13 @@ public class Console
                 {
                     String expression = input.substring("last ".length());
                     last(Integer.parseInt(expression));
+                } else if (input.equals("stats") || input.startsWith("stats "))
+                {
+                    stats(input.substring("stats".length()).trim());
+                } else if (input.startsWith("export "))
+                {
+                    String expression = input.substring("export ".length());
+                    export(expression.trim());
                 } else if (input.startsWith("add "))
                 {
                     String expression = input.substring("add ".length());
@@ -344,11 +464,78 @@ public class Console
             System.out.println("Error: the amount of days must be nonnegative");
         }
 
-        DailyRecord[] lastDays = recordManager.getLastDays(days);
+        DailySummary[] lastDays = recordManager.getLastDaySummaries(days);
 
         System.out.println(formatter.format(lastDays));
     }
 
+    /**
+     * @param expression Empty or a nutrient, optionally followed by the number of weeks
+     */
+    private void stats(String expression)
+    {
+        NutrientAggregator aggregator = recordManager.getAggregator();
+        int today = RecordManager.getSimpleCalendar(new GregorianCalendar()).toEpochDay();
+
+        if (expression.isEmpty())
+        {
+            System.out.println(formatter.formatAverages(aggregator, today));
+            return;
+        }
+
+        int weeks = 8;
+        int lastSpace = expression.lastIndexOf(' ');
+        if (lastSpace != -1 && expression.substring(lastSpace + 1).matches("\\d+"))
+        {
+            weeks = Integer.parseInt(expression.substring(lastSpace + 1));
+            expression = expression.substring(0, lastSpace);
+        }
+        if (weeks <= 0)
+        {
+            System.out.println("Error: the amount of weeks must be positive");
+            return;
+        }
+
+        Specification.NutrientType type = Specification.getNutrientForUserInput(expression);
+        if (type == null)
+        {
+            System.out.println("Error: " + expression + " is an invalid nutrient");
+            return;
+        }
+
+        // same unit as in reports if the nutrient is shown there
+        NutrientQuantity.Unit unit = null;
+        int shownIndex = formatter.getShownNutrients().indexOf(type);
+        if (shownIndex != -1)
+            unit = formatter.getDesiredUnits().get(shownIndex);
+
+        System.out.println(formatter.formatWeeks(aggregator, type, unit, today, weeks));
+    }
+
+    /**
+     * @param expression Format followed by the file name
+     */
+    private void export(String expression)
+    {
+        int space = expression.indexOf(' ');
+        RecordExporter.Format format = space != -1 ? RecordExporter.getFormat(expression.substring(0, space)) : null;
+        if (format == null)
+        {
+            System.out.println("Error: specify the format (csv or jsonl) and the file name");
+            return;
+        }
+        String fileName = expression.substring(space + 1).trim();
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8))
+        {
+            int rows = new RecordExporter(format).export(recordManager, writer);
+            System.out.println("Exported " + rows + " entries to " + fileName);
+        } catch (IOException e)
+        {
+            System.out.println("Error: couldn't write " + fileName + " (" + e.getMessage() + ")");
+        }
+    }
+
     private void create()
     {
         Scanner scanner = new Scanner(System.in);
@@ -474,7 +661,7 @@ public class Console
 
         try
         {
-            userFoodDatabase.createItem(new UserFoodItem(id, description, descriptionCompsArray, nutrients, kcal, 80,
+            userFoodDatabase.get().createItem(new UserFoodItem(id, description, descriptionCompsArray, nutrients, kcal, 80,
                     commonMeasures.toArray(new UserFoodItem.CommonMeasure[commonMeasures.size()])));
             System.out.println("Item created.");
         } catch (IOException e)
@@ -534,6 +721,13 @@ public class Console
                 {
                         "REPORT", "Shows added items for the current record.", "(no arguments)"
                 },
+                {
+                        "EXPORT", "Writes all entries of all records to a file.", "[format] [file]\n\tformat:\t\"CSV\" or \"JSONL\" (JSON Lines)\n\tfile:\tName of the file, which is overwritten"
+                },
+                {
+                        "STATS", "Shows averages and trends of past days.", "[nutrient] [weeks]\n\tnutrient:\tIf specified, shows weekly averages, minimums, maximums and the trend of this nutrient " +
+                        "instead of all shown nutrients, e.g. \"protein\" or \"cal\".\n\tweeks:\t\tNumber of weeks to show for the nutrient (8 by default)."
+                },
                 {
                         "END", "Marks the end of the meal which will be shown in the report", "[label]\n\tlabel: Name for the meal"
                 },
@@ -591,6 +785,71 @@ public class Console
         }
     }
 
+    /**
+     * @return USDA database, which is the current data source or loaded separately
+     */
+    private synchronized SyncFoodDataSource getUSDADatabase()
+    {
+        SyncFoodDataSource current = dataSource != null ? dataSource.get() : null;
+        if (current instanceof LocalUSDAFoodDatabase)
+            return current;
+
+        if (usdaDatabase == null)
+            usdaDatabase = loadUSDADatabase();
+        return usdaDatabase.get();
+    }
+
+    private static BackgroundLoader<SyncFoodDataSource> loadUSDADatabase()
+    {
+        return new BackgroundLoader<SyncFoodDataSource>("Loading USDA database")
+        {
+            private int statusUpdates = 0;
+
+            @Override
+            protected SyncFoodDataSource load()
+            {
+                final float interval = 0.05f;
+                return new LocalUSDAFoodDatabase(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        publishProgress(++statusUpdates * interval);
+                    }
+                }, interval);
+            }
+        }.start();
+    }
+
+    /**
+     * @return Loader for the FatSecret API behind the local mirror of previously retrieved items
+     */
+    private static BackgroundLoader<SyncFoodDataSource> loadFatSecretMirror(final FatsecretAPI api)
+    {
+        return new BackgroundLoader<SyncFoodDataSource>("Loading FatSecret mirror")
+        {
+            @Override
+            protected SyncFoodDataSource load() throws Exception
+            {
+                // identical and refined searches don't need another request, and the first results are
+                // already fetched when the user picks one
+                SyncFoodDataSource remote = new PrefetchingFoodSource(new SyncFoodDataSourceAdapter(
+                        new CoalescingFoodSource(new FutureFoodDataSourceAdapter(new ResilientFoodSource(api)))));
+                return new FatSecretMirror(remote, new File(FATSECRET_MIRROR_FILENAME),
+                        LocalUSDAFoodDatabase.getSharedDescriptionBase());
+            }
+        }.start();
+    }
+
+    /**
+     * @return Current data source combined with the user's database. Blocks until both are loaded.
+     */
+    private SyncFoodDataSource getFoodSource()
+    {
+        return new CompositeFoodSource(CompositeFoodSource.DEFAULT_DEADLINE_MS, MAX_SEARCH_RESULTS,
+                dataSource.get(), userFoodDatabase.get());
+    }
+
     private void switchDatasource(String expression)
     {
         expression = expression.toLowerCase();
@@ -598,11 +857,12 @@ public class Console
         switch (expression)
         {
             case "fatsecret":
-                dataSource = new FatsecretAPI();
+                // credentials are checked right away
+                dataSource = loadFatSecretMirror(new FatsecretAPI());
                 System.out.println("Data source switched to FatSecret API");
                 break;
             case "usda":
-                dataSource = new LocalUSDAFoodDatabase();
+                dataSource = loadUSDADatabase();
                 System.out.println("Data source switched to USDA Database");
                 break;
             default:
@@ -789,14 +1049,14 @@ public class Console
 
     private void search(String description)
     {
-        List<SearchResultItem> results = new CompositeFoodSource(dataSource, userFoodDatabase).search(description, history, false);
+        List<SearchResultItem> results = getFoodSource().search(description, history.get(), false);
         printSearchResults(results);
     }
 
     private void printSearchResults(List<SearchResultItem> results)
     {
         // max amount of entries that will be shown to the user (upon request)
-        final int entryLimit = Math.min(50, results.size());
+        final int entryLimit = Math.min(MAX_SEARCH_RESULTS, results.size());
         int currentPos = 0;
 
         // make matrix with all the search results up to entryLimit
@@ -872,13 +1132,13 @@ public class Console
                 FoodInputExpression foodInputExpression = new FoodInputExpressionParser().parse(input);
 
                 // search for foodItem in the database
-                List<SearchResultItem> results = new CompositeFoodSource(dataSource, userFoodDatabase).search(foodInputExpression.getDescription(), history, false);
+                List<SearchResultItem> results = getFoodSource().search(foodInputExpression.getDescription(), history.get(), false);
                 if (results.isEmpty())
                 {
                     System.out.println("No matches were found in the database. Consider adding the nutrients directly, like \"add 75g protein, 30g carbs\"");
                 } else if (quickAdd)
                 {
-                    FoodItem item = new CompositeFoodSource(dataSource, userFoodDatabase).retrieve(results.get(0).getId(), history);
+                    FoodItem item = getFoodSource().retrieve(results.get(0).getId(), history.get());
                     quickAddFood(foodInputExpression, item, microNutrientsOnly);
                 } else
                 {
@@ -924,7 +1184,7 @@ public class Console
     private void pickFood(FoodInputExpression expression, List<SearchResultItem> results, boolean microNutrientsOnly)
     {
         // max amount of entries that will be shown to the user (upon request)
-        final int entryLimit = Math.min(50, results.size());
+        final int entryLimit = Math.min(MAX_SEARCH_RESULTS, results.size());
         int currentPos = 0;
 
         final String prompt = "Type in a number, \"esc\" or \"more\": ";
@@ -978,7 +1238,7 @@ public class Console
                     System.out.println("Invalid input; " + prompt);
                 } else
                 {
-                    FoodItem foodItem = new CompositeFoodSource(dataSource, userFoodDatabase).retrieve(results.get(number - 1).getId(), history);
+                    FoodItem foodItem = getFoodSource().retrieve(results.get(number - 1).getId(), history.get());
                     try
                     {
                         createMemento();
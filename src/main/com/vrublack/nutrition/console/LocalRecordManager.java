@@ -2,15 +2,61 @@ package com.vrublack.nutrition.console;
 
 
 import com.vrublack.nutrition.core.DailyRecord;
+import com.vrublack.nutrition.core.DailySummary;
+import com.vrublack.nutrition.core.FoodItemResolver;
+import com.vrublack.nutrition.core.RecordCodec;
 import com.vrublack.nutrition.core.RecordManager;
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 public class LocalRecordManager extends RecordManager
 {
     private static final String FOLDER = "records";
+    private static final String SUMMARY_FILE = "record_summaries";
+
+    // reads and decodes the files of ranges of records; bounded so that long ranges don't open all files at once
+    private static final ExecutorService loader = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory("Record loader"));
+
+    private final RecordCodec codec;
+
+    private final SummaryFile summaryFile = new SummaryFile(new File(SUMMARY_FILE));
+
+    private final boolean readOnly;
+
+    public LocalRecordManager()
+    {
+        this(null);
+    }
+
+    /**
+     * @param resolver Finds the food items of loaded records when they are needed, or <code>null</code> to only use
+     *                 the values stored in the records
+     */
+    public LocalRecordManager(FoodItemResolver resolver)
+    {
+        this(resolver, false);
+    }
+
+    /**
+     * @param resolver Finds the food items of loaded records when they are needed, or <code>null</code> to only use
+     *                 the values stored in the records
+     * @param readOnly If set, no files are written: old records aren't converted, summaries are computed from the
+     *                 records and saving a record fails
+     */
+    public LocalRecordManager(FoodItemResolver resolver, boolean readOnly)
+    {
+        codec = new RecordCodec(resolver);
+        this.readOnly = readOnly;
+    }
 
     @Override
     public List<String> loadFileNames()
@@ -23,7 +69,8 @@ public class LocalRecordManager extends RecordManager
 
         for (File file : listOfFiles)
         {
-            if (file.isFile())
+            // leftovers of interrupted writes are ignored
+            if (file.isFile() && !file.getName().endsWith(".tmp"))
             {
                 fileNames.add(file.getName());
             }
@@ -41,37 +88,103 @@ public class LocalRecordManager extends RecordManager
 
         try
         {
-            FileInputStream fis = new FileInputStream(recordFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            return (DailyRecord) ois.readObject();
+            byte[] data = Files.readAllBytes(recordFile.toPath());
+            DailyRecord record = codec.decode(data);
 
-        } catch (FileNotFoundException e)
-        {
-            return null;
+            // records written with Java serialization are converted when they are first loaded, unless references to
+            // their items would get lost
+            if (!readOnly && RecordCodec.isLegacy(data) && codec.canEncode(record))
+                storeRecord(record);
+
+            return record;
         } catch (IOException e)
         {
             return null;
-        } catch (ClassNotFoundException e)
+        }
+    }
+
+    /**
+     * Loads the records in parallel, since every record is a separate file
+     */
+    @Override
+    protected Map<String, DailyRecord> loadRecords(List<String> dateStrings)
+    {
+        if (dateStrings.size() < 2)
+            return super.loadRecords(dateStrings);
+
+        List<Future<DailyRecord>> futures = new ArrayList<>();
+        for (final String dateString : dateStrings)
         {
-            return null;
+            futures.add(loader.submit(new Callable<DailyRecord>()
+            {
+                @Override
+                public DailyRecord call()
+                {
+                    return loadRecord(dateString);
+                }
+            }));
         }
+
+        Map<String, DailyRecord> records = new HashMap<>();
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                DailyRecord record = futures.get(i).get();
+                if (record != null)
+                    records.put(dateStrings.get(i), record);
+            } catch (ExecutionException e)
+            {
+                e.printStackTrace();
+            } catch (InterruptedException e)
+            {
+                for (Future<DailyRecord> future : futures)
+                    future.cancel(true);
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return records;
     }
 
     @Override
-    public void saveRecord(DailyRecord record)
+    protected void storeRecord(DailyRecord record)
     {
+        if (readOnly)
+            throw new IllegalStateException("Records were opened read-only");
+
         File folder = new File(FOLDER);
         if (!folder.exists())
             folder.mkdir();
         try
         {
-            String fileName = FOLDER + "/" + getDateString(RecordManager.getCalendar(record.getDate()));
-            FileOutputStream fos = new FileOutputStream(new File(fileName));
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(record);
+            File file = new File(FOLDER + "/" + getDateString(RecordManager.getCalendar(record.getDate())));
+            // written to a temporary file first, so that the record isn't lost if writing fails halfway
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp))
+            {
+                fos.write(codec.encode(record));
+                // on disk before it replaces the old file, or a crash could leave an empty record
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e)
         {
             e.printStackTrace();
         }
     }
+
+    @Override
+    protected Map<Integer, DailySummary> loadSummaries()
+    {
+        // loading may repair the file
+        return readOnly ? super.loadSummaries() : summaryFile.load();
+    }
+
+    @Override
+    protected void storeSummary(DailySummary summary)
+    {
+        if (!readOnly)
+            summaryFile.append(summary);
+    }
 }
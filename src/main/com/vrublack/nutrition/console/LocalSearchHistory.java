@@ -3,13 +3,24 @@ package com.vrublack.nutrition.console;
 import com.vrublack.nutrition.core.Pair;
 import com.vrublack.nutrition.core.SearchHistory;
 import com.vrublack.nutrition.core.SearchStringStat;
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Stores/retrieves search feedback from local file
+ * Stores/retrieves search feedback from local files. The history is kept in a map by normalized search string.
+ * Every selection is appended to a journal by a single background thread, and the whole history is only written to
+ * the snapshot once the journal has grown as large as the history itself, so the cost per selection stays constant.
  */
 public class LocalSearchHistory implements SearchHistory
 {
@@ -17,109 +28,213 @@ public class LocalSearchHistory implements SearchHistory
     private static LocalSearchHistory instance;
 
     private final static String LOCAL_FILE_PATH = "search_stats";
+    private final static String JOURNAL_FILE_PATH = "search_stats.journal";
 
-    // a Map would be faster but for a small number of entries this is irrelevant
-    private ArrayList<SearchStringStat> stats;
+    // a journal with fewer records than this isn't compacted
+    private final static int MIN_JOURNAL_RECORDS = 100;
+
+    // by normalized search string
+    private final ConcurrentHashMap<String, SearchStringStat> stats = new ConcurrentHashMap<>();
+
+    // the only thread that modifies stats and writes the files
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new DaemonThreadFactory("Search history"));
+
+    private DataOutputStream journal;
+    private int journalRecords;
 
     private LocalSearchHistory()
     {
-        ObjectInputStream ois = null;
-        try
+        loadSnapshot();
+        replayJournal();
+
+        Runtime.getRuntime().addShutdownHook(new Thread()
         {
-            ois = new ObjectInputStream(new FileInputStream(new File(LOCAL_FILE_PATH)));
-            stats = (ArrayList<SearchStringStat>) ois.readObject();
-        } catch (IOException e)
+            @Override
+            public void run()
+            {
+                close();
+            }
+        });
+    }
+
+    public static synchronized LocalSearchHistory getInstance()
+    {
+        if (instance == null)
+            instance = new LocalSearchHistory();
+        return instance;
+    }
+
+    private static String normalize(String searchString)
+    {
+        return searchString.trim().toLowerCase();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadSnapshot()
+    {
+        File file = new File(LOCAL_FILE_PATH);
+        if (!file.exists())
+            return;
+
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file))))
         {
-            stats = new ArrayList<>();
-        } catch (ClassNotFoundException e)
+            for (SearchStringStat stat : (ArrayList<SearchStringStat>) ois.readObject())
+                stats.putIfAbsent(normalize(stat.getSearchString()), stat);
+        } catch (IOException | ClassNotFoundException e)
         {
             e.printStackTrace();
-        } finally
+        }
+    }
+
+    /**
+     * Journal format: search string and selected id as modified UTF-8 for every selection
+     */
+    private void replayJournal()
+    {
+        File file = new File(JOURNAL_FILE_PATH);
+        if (!file.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
         {
-            if (ois != null)
-                try
-                {
-                    ois.close();
-                } catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+            while (true)
+            {
+                String searchString = in.readUTF();
+                String selectedNDBNumber = in.readUTF();
+                apply(searchString, selectedNDBNumber);
+                journalRecords++;
+            }
+        } catch (EOFException e)
+        {
+            // end of journal or a partially written last record
+        } catch (IOException e)
+        {
+            e.printStackTrace();
         }
     }
 
-    public static LocalSearchHistory getInstance()
+    private void apply(String searchString, String selectedNDBNumber)
     {
-        if (instance == null)
-            instance = new LocalSearchHistory();
-        return instance;
+        String key = normalize(searchString);
+        SearchStringStat stat = stats.get(key);
+        if (stat == null)
+        {
+            stat = new SearchStringStat(searchString);
+            stats.put(key, stat);
+        }
+
+        synchronized (stat)
+        {
+            stat.putResult(selectedNDBNumber);
+        }
     }
 
     @Override
     public String getNDBNumberForSearchResult(String searchString)
     {
-        for (SearchStringStat stat : stats)
+        SearchStringStat stat = stats.get(normalize(searchString));
+        if (stat == null)
+            return null;
+
+        synchronized (stat)
         {
-            if (stat.getSearchString().trim().equalsIgnoreCase(searchString.trim()))
-            {
-                return stat.getMostCommonPair().first;
-            }
+            return stat.getMostCommonPair().first;
         }
-
-        return null;
     }
 
     @Override
-    public synchronized void putNDBNumberForSearchResult(final String searchString, final String selectedNDBNumber)
+    public void putNDBNumberForSearchResult(final String searchString, final String selectedNDBNumber)
     {
-        // this can be offloaded into a background thread
-        Thread t = new Thread()
+        writer.execute(new Runnable()
         {
             @Override
             public void run()
             {
-                SearchStringStat existing = null;
-                for (SearchStringStat stat : stats)
+                apply(searchString, selectedNDBNumber);
+                try
                 {
-                    if (stat.getSearchString().trim().equalsIgnoreCase(searchString.trim()))
-                    {
-                        existing = stat;
-                        break;
-                    }
-                }
-
-                if (existing == null)
+                    appendToJournal(searchString, selectedNDBNumber);
+                    if (journalRecords >= Math.max(MIN_JOURNAL_RECORDS, stats.size()))
+                        writeSnapshot();
+                } catch (IOException e)
                 {
-                    existing = new SearchStringStat(searchString);
-                    stats.add(existing);
+                    e.printStackTrace();
                 }
+            }
+        });
+    }
 
-                existing.putResult(selectedNDBNumber);
+    private void appendToJournal(String searchString, String selectedNDBNumber) throws IOException
+    {
+        if (journal == null)
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(JOURNAL_FILE_PATH, true)));
+
+        journal.writeUTF(searchString);
+        journal.writeUTF(selectedNDBNumber);
+        journal.flush();
+        journalRecords++;
+    }
 
+    /**
+     * Writes the whole history to the snapshot and empties the journal
+     */
+    private void writeSnapshot() throws IOException
+    {
+        File file = new File(LOCAL_FILE_PATH);
+        File tmp = new File(LOCAL_FILE_PATH + ".tmp");
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            oos.writeObject(new ArrayList<>(stats.values()));
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 
-                // immediately save
-                ObjectOutputStream oos = null;
+        // a crash before this only means that the journal is replayed on top of a snapshot that already contains it,
+        // which counts those selections twice
+        if (journal != null)
+        {
+            journal.close();
+            journal = null;
+        }
+        new File(JOURNAL_FILE_PATH).delete();
+        journalRecords = 0;
+    }
+
+    /**
+     * Writes the pending selections and the snapshot
+     */
+    private void close()
+    {
+        writer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
                 try
                 {
-                    oos = new ObjectOutputStream(new FileOutputStream(new File(LOCAL_FILE_PATH)));
-                    oos.writeObject(stats);
+                    if (journalRecords > 0)
+                        writeSnapshot();
                 } catch (IOException e)
                 {
                     e.printStackTrace();
-                } finally
-                {
-                    if (oos != null)
-                        try
-                        {
-                            oos.close();
-                        } catch (IOException e)
-                        {
-                            e.printStackTrace();
-                        }
                 }
             }
-        };
+        });
+        writer.shutdown();
+        try
+        {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        t.start();
+    /**
+     * @return Stats by search string. Callers have to synchronize on a stat while they read it.
+     */
+    public Collection<SearchStringStat> getStats()
+    {
+        return Collections.unmodifiableCollection(stats.values());
     }
 
     /**
@@ -128,9 +243,12 @@ public class LocalSearchHistory implements SearchHistory
     public List<Pair<String, String>> getQueryIdPairs()
     {
         List<Pair<String, String>> pairs = new ArrayList<>();
-        for (SearchStringStat stat : stats)
+        for (SearchStringStat stat : stats.values())
         {
-            pairs.add(new Pair<>(stat.getSearchString(), stat.getMostCommonPair().first));
+            synchronized (stat)
+            {
+                pairs.add(new Pair<>(stat.getSearchString(), stat.getMostCommonPair().first));
+            }
         }
 
         return pairs;
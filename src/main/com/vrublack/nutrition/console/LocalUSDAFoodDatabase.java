@@ -6,17 +6,54 @@ import com.vrublack.nutrition.core.search.DescriptionBase;
 import com.vrublack.nutrition.core.usda.USDAFoodDatabase;
 
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class LocalUSDAFoodDatabase extends USDAFoodDatabase
 {
     private final static String FILENAME = "ABBREV_CUST.txt";
 
+    // dictionary is shared between all instances and loaded at most once
+    private static FutureTask<DescriptionBase> descriptionBase;
+
 
     public LocalUSDAFoodDatabase()
     {
         // parent constructor loads ascii file
     }
 
+    /**
+     * @param onStatusUpdate  Called every time another percentInterval of the file has been parsed
+     * @param percentInterval Fraction in (0, 1]
+     */
+    public LocalUSDAFoodDatabase(Runnable onStatusUpdate, float percentInterval)
+    {
+        super(onStatusUpdate, percentInterval);
+    }
+
+    /**
+     * Starts loading the dictionary on a background thread (if that hasn't happened yet), so it can be loaded
+     * while the ascii file is being parsed
+     */
+    public static synchronized void preloadDescriptionBase()
+    {
+        if (descriptionBase != null)
+            return;
+
+        descriptionBase = new FutureTask<>(new Callable<DescriptionBase>()
+        {
+            @Override
+            public DescriptionBase call() throws Exception
+            {
+                return DescriptionBase.getDescriptionBase(new FileInputStream("food_english.0"), new FileInputStream("food_scored.txt"));
+            }
+        });
+        Thread thread = new Thread(descriptionBase, "Loading dictionary");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     @Override
     public BufferedReader getBufferedReader() throws FileNotFoundException
     {
@@ -26,6 +63,27 @@ public class LocalUSDAFoodDatabase extends USDAFoodDatabase
     @Override
     public DescriptionBase getDescriptionBase() throws FileNotFoundException
     {
-        return DescriptionBase.getDescriptionBase(new FileInputStream("food_english.0"), new FileInputStream("food_scored.txt"));
+        return getSharedDescriptionBase();
+    }
+
+    /**
+     * @return Dictionary that is shared between all databases. Blocks until it is loaded.
+     */
+    public static DescriptionBase getSharedDescriptionBase() throws FileNotFoundException
+    {
+        preloadDescriptionBase();
+        try
+        {
+            return descriptionBase.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted while loading dictionary");
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof FileNotFoundException)
+                throw (FileNotFoundException) e.getCause();
+            throw new FileNotFoundException(e.getCause().toString());
+        }
     }
 }
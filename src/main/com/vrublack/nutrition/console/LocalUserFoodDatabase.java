@@ -1,6 +1,8 @@
 package com.vrublack.nutrition.console;
 
+import com.vrublack.nutrition.core.search.DescriptionBase;
 import com.vrublack.nutrition.core.userdb.UserFoodDatabase;
+import com.vrublack.nutrition.core.userdb.UserFoodJournal;
 
 import java.io.*;
 
@@ -23,8 +25,15 @@ public class LocalUserFoodDatabase extends UserFoodDatabase
     }
 
     @Override
-    public BufferedWriter getBufferedWriter() throws IOException
+    public UserFoodJournal openJournal() throws IOException
     {
-        return new BufferedWriter(new FileWriter(FILENAME, true));
+        return new UserFoodJournal(new File(FILENAME));
+    }
+
+    @Override
+    public DescriptionBase getDescriptionBase() throws FileNotFoundException
+    {
+        // same dictionary as the USDA database, which is only loaded once
+        return LocalUSDAFoodDatabase.getSharedDescriptionBase();
     }
 }
@@ -0,0 +1,533 @@
+package com.vrublack.nutrition.console;
+
+
+import com.vrublack.nutrition.core.*;
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps all records in a single append-only file. Every save appends the whole record, so later entries of a day
+ * replace earlier ones. An index from day to file position is kept in memory and written as a footer when the file is
+ * closed, so that it doesn't have to be rebuilt by reading the entire file on the next start. Once most of the file
+ * consists of replaced entries, it is compacted in the background, which also sorts the records by day so that
+ * ranges of days can be read at once.
+ * <p>
+ * Entry format: payload length, type, payload. A record entry contains the epoch day followed by the record in
+ * RecordCodec format. The footer contains the index, its own offset and a magic number.
+ */
+public class LogRecordManager extends RecordManager
+{
+    public final static String DEFAULT_FILE = "records.log";
+
+    private final static int ENTRY_RECORD = 1;
+    private final static int ENTRY_FOOTER = 2;
+
+    // payload length and type
+    private final static int HEADER_SIZE = 5;
+
+    // footer offset and magic number at the end of the footer
+    private final static int TRAILER_SIZE = 12;
+    private final static int TRAILER_MAGIC = 0x544c4f47;
+
+    // smaller files aren't compacted
+    private final static long COMPACTION_MIN_BYTES = 1 << 20;
+
+    // ranges that are spread out more than that are read record by record
+    private final static int MAX_RANGE_READ_BYTES = 16 << 20;
+
+    private static class Location
+    {
+        final long offset;
+
+        // of the entire entry including the header
+        final int length;
+
+        Location(long offset, int length)
+        {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+
+    private final RecordCodec codec;
+
+    private final SummaryFile summaryFile;
+
+    private final boolean readOnly;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("Record compaction"));
+
+    private RandomAccessFile log;
+
+    // latest entry of every day
+    private final TreeMap<Integer, Location> index = new TreeMap<>();
+
+    private long end;
+
+    // bytes of the entries in the index
+    private long liveBytes;
+
+    // offset of the footer at the end of the file or -1 if records were appended after it
+    private long footerOffset = -1;
+
+    private boolean compactionScheduled;
+
+    /**
+     * @param file     Log file, which is created if it doesn't exist
+     * @param resolver Finds the food items of loaded records when they are needed, or <code>null</code> to only use
+     *                 the values stored in the records
+     */
+    public LogRecordManager(File file, FoodItemResolver resolver) throws IOException
+    {
+        this(file, resolver, false);
+    }
+
+    /**
+     * @param file     Log file, which is created if it doesn't exist and readOnly isn't set
+     * @param resolver Finds the food items of loaded records when they are needed, or <code>null</code> to only use
+     *                 the values stored in the records
+     * @param readOnly If set, the file isn't modified: an incomplete entry at the end is ignored instead of removed,
+     *                 no footer is written, summaries are computed from the records and saving a record fails
+     */
+    public LogRecordManager(File file, FoodItemResolver resolver, boolean readOnly) throws IOException
+    {
+        this.file = file;
+        this.readOnly = readOnly;
+        codec = new RecordCodec(resolver);
+        summaryFile = new SummaryFile(new File(file.getPath() + ".summaries"));
+        log = new RandomAccessFile(file, readOnly ? "r" : "rw");
+
+        if (!readFooter())
+            scan();
+
+        if (readOnly)
+            return;
+
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Reads the index from the footer if the file ends with one
+     *
+     * @return If the footer was valid
+     */
+    private boolean readFooter() throws IOException
+    {
+        long length = log.length();
+        if (length < HEADER_SIZE + 4 + TRAILER_SIZE)
+            return false;
+
+        log.seek(length - TRAILER_SIZE);
+        long offset = log.readLong();
+        if (log.readInt() != TRAILER_MAGIC || offset < 0 || offset > length - HEADER_SIZE - TRAILER_SIZE)
+            return false;
+
+        byte[] footer = new byte[(int) (length - offset)];
+        log.seek(offset);
+        log.readFully(footer);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+        if (in.readInt() != footer.length - HEADER_SIZE || in.readUnsignedByte() != ENTRY_FOOTER)
+            return false;
+
+        int count = in.readInt();
+        if (count * 16 != footer.length - HEADER_SIZE - 4 - TRAILER_SIZE)
+            return false;
+        for (int i = 0; i < count; i++)
+        {
+            int day = in.readInt();
+            Location location = new Location(in.readLong(), in.readInt());
+            if (location.offset < 0 || location.offset + location.length > offset)
+            {
+                index.clear();
+                return false;
+            }
+            index.put(day, location);
+            liveBytes += location.length;
+        }
+
+        end = length;
+        footerOffset = offset;
+        return true;
+    }
+
+    /**
+     * Rebuilds the index by reading all entries, e.g. after the application wasn't closed properly. An incomplete
+     * entry at the end is removed.
+     */
+    private void scan() throws IOException
+    {
+        long length = log.length();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while (position + HEADER_SIZE <= length)
+            {
+                int payloadLength = in.readInt();
+                int type = in.readUnsignedByte();
+                if (payloadLength < 0 || position + HEADER_SIZE + payloadLength > length
+                        || (type == ENTRY_RECORD && payloadLength < 4))
+                    break;
+
+                int skip = payloadLength;
+                if (type == ENTRY_RECORD)
+                {
+                    int day = in.readInt();
+                    skip -= 4;
+                    Location location = new Location(position, HEADER_SIZE + payloadLength);
+                    Location replaced = index.put(day, location);
+                    if (replaced != null)
+                        liveBytes -= replaced.length;
+                    liveBytes += location.length;
+                }
+                skipFully(in, skip);
+                position += HEADER_SIZE + payloadLength;
+            }
+        }
+
+        if (position < length && !readOnly)
+            log.setLength(position);
+        end = position;
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException
+    {
+        while (n > 0)
+        {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    @Override
+    public synchronized List<String> loadFileNames()
+    {
+        List<String> dateStrings = new ArrayList<>();
+        for (int day : index.keySet())
+            dateStrings.add(SimpleCalendar.fromEpochDay(day).format());
+        return dateStrings;
+    }
+
+    @Override
+    public synchronized DailyRecord loadRecord(String dateString)
+    {
+        Location location = getLocation(dateString);
+        if (location == null)
+            return null;
+
+        try
+        {
+            byte[] entry = new byte[location.length];
+            log.seek(location.offset);
+            log.readFully(entry);
+            return decode(entry, 0, entry.length);
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the records with a single read from the first to the last of them
+     */
+    @Override
+    protected synchronized Map<String, DailyRecord> loadRecords(List<String> dateStrings)
+    {
+        List<Pair<String, Location>> locations = new ArrayList<>();
+        long start = Long.MAX_VALUE;
+        long stop = 0;
+        for (String dateString : dateStrings)
+        {
+            Location location = getLocation(dateString);
+            if (location == null)
+                continue;
+            locations.add(new Pair<>(dateString, location));
+            start = Math.min(start, location.offset);
+            stop = Math.max(stop, location.offset + location.length);
+        }
+
+        if (locations.isEmpty() || stop - start > MAX_RANGE_READ_BYTES)
+            return super.loadRecords(dateStrings);
+
+        Map<String, DailyRecord> records = new HashMap<>();
+        try
+        {
+            byte[] range = new byte[(int) (stop - start)];
+            log.seek(start);
+            log.readFully(range);
+            for (Pair<String, Location> location : locations)
+            {
+                try
+                {
+                    records.put(location.first, decode(range, (int) (location.second.offset - start),
+                            location.second.length));
+                } catch (IOException e)
+                {
+                    // leave out that record
+                }
+            }
+        } catch (IOException e)
+        {
+            return super.loadRecords(dateStrings);
+        }
+        return records;
+    }
+
+    private Location getLocation(String dateString)
+    {
+        SimpleCalendar date = parseDateString(dateString);
+        return date != null ? index.get(date.toEpochDay()) : null;
+    }
+
+    private DailyRecord decode(byte[] data, int offset, int length) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        in.readInt();
+        if (in.readUnsignedByte() != ENTRY_RECORD)
+            throw new IOException("Not a record entry");
+        in.readInt();
+        return codec.read(in);
+    }
+
+    @Override
+    protected synchronized void storeRecord(DailyRecord record)
+    {
+        if (readOnly)
+            throw new IllegalStateException("Records were opened read-only");
+
+        try
+        {
+            int day = record.getDate().toEpochDay();
+            byte[] encoded = codec.encode(record);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + 4 + encoded.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(4 + encoded.length);
+            out.writeByte(ENTRY_RECORD);
+            out.writeInt(day);
+            out.write(encoded);
+            byte[] entry = bytes.toByteArray();
+
+            // the footer is written again when the file is closed
+            if (footerOffset >= 0)
+            {
+                log.setLength(footerOffset);
+                end = footerOffset;
+                footerOffset = -1;
+            }
+
+            log.seek(end);
+            log.write(entry);
+
+            Location location = new Location(end, entry.length);
+            Location replaced = index.put(day, location);
+            if (replaced != null)
+                liveBytes -= replaced.length;
+            liveBytes += location.length;
+            end += entry.length;
+
+            scheduleCompaction();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected Map<Integer, DailySummary> loadSummaries()
+    {
+        // loading may repair the file
+        return readOnly ? super.loadSummaries() : summaryFile.load();
+    }
+
+    @Override
+    protected synchronized void storeSummary(DailySummary summary)
+    {
+        if (!readOnly)
+            summaryFile.append(summary);
+    }
+
+    private void scheduleCompaction()
+    {
+        if (compactionScheduled || end < COMPACTION_MIN_BYTES || end - liveBytes < liveBytes)
+            return;
+
+        compactionScheduled = true;
+        compactor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    compact();
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites the file with only the latest entry of every day, sorted by day
+     */
+    public synchronized void compact() throws IOException
+    {
+        if (readOnly)
+            throw new IllegalStateException("Records were opened read-only");
+        compactionScheduled = false;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        TreeMap<Integer, Location> compacted = new TreeMap<>();
+        long position = 0;
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                for (Map.Entry<Integer, Location> entry : index.entrySet())
+                {
+                    byte[] data = new byte[entry.getValue().length];
+                    log.seek(entry.getValue().offset);
+                    log.readFully(data);
+                    out.write(data);
+                    compacted.put(entry.getKey(), new Location(position, data.length));
+                    position += data.length;
+                }
+                writeFooter(compacted, position, out);
+            }
+        } catch (IOException e)
+        {
+            tmp.delete();
+            throw e;
+        }
+
+        // an open file can't be replaced on Windows
+        log.close();
+        try
+        {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            tmp.delete();
+            throw e;
+        } finally
+        {
+            // the old file if it couldn't be replaced, so that the index still matches
+            log = new RandomAccessFile(file, "rw");
+        }
+
+        index.clear();
+        index.putAll(compacted);
+        liveBytes = position;
+        footerOffset = position;
+        end = log.length();
+    }
+
+    private static void writeFooter(Map<Integer, Location> index, long offset, DataOutput out) throws IOException
+    {
+        out.writeInt(4 + index.size() * 16 + TRAILER_SIZE);
+        out.writeByte(ENTRY_FOOTER);
+        out.writeInt(index.size());
+        for (Map.Entry<Integer, Location> entry : index.entrySet())
+        {
+            out.writeInt(entry.getKey());
+            out.writeLong(entry.getValue().offset);
+            out.writeInt(entry.getValue().length);
+        }
+        out.writeLong(offset);
+        out.writeInt(TRAILER_MAGIC);
+    }
+
+    /**
+     * Copies all records from the other manager that aren't in this one yet
+     *
+     * @return Number of imported records
+     */
+    public int importRecords(RecordManager source)
+    {
+        int imported = 0;
+        for (String dateString : source.loadFileNames())
+        {
+            SimpleCalendar date = parseDateString(dateString);
+            if (date == null)
+                continue;
+            synchronized (this)
+            {
+                if (index.containsKey(date.toEpochDay()))
+                    continue;
+            }
+
+            DailyRecord record = source.loadRecord(dateString);
+            if (record != null)
+            {
+                saveRecord(record);
+                imported++;
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * @return Size of the file in bytes
+     */
+    public synchronized long getFileSize()
+    {
+        return end;
+    }
+
+    /**
+     * @return Bytes of the file that belong to the latest entries
+     */
+    public synchronized long getLiveBytes()
+    {
+        return liveBytes;
+    }
+
+    /**
+     * Writes the index to the end of the file, so that it doesn't have to be rebuilt on the next start
+     */
+    public void close()
+    {
+        // records that are still being saved in the background are written first
+        flush();
+        writeCheckpoint();
+    }
+
+    private synchronized void writeCheckpoint()
+    {
+        if (readOnly || footerOffset >= 0)
+            return;
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeFooter(index, end, new DataOutputStream(bytes));
+            log.seek(end);
+            log.write(bytes.toByteArray());
+            log.getFD().sync();
+            footerOffset = end;
+            end += bytes.size();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.vrublack.nutrition.console;
+
+
+import com.vrublack.nutrition.core.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes all records as a table with one row per entry: date, time it was added, meal, description, quantity, unit,
+ * calories and every nutrient in its canonical unit (see DailySummary). Empty cells are left out or null. Rows are
+ * written while the records are read, so any number of records can be exported.
+ */
+public class RecordExporter
+{
+    public enum Format
+    {
+        CSV,
+        JSONL   // JSON Lines, one object per line
+    }
+
+    private final static Specification.NutrientType[] NUTRIENTS;
+
+    static
+    {
+        // calories have their own column
+        Specification.NutrientType[] types = Specification.NutrientType.values();
+        NUTRIENTS = new Specification.NutrientType[types.length - 1];
+        int i = 0;
+        for (Specification.NutrientType type : types)
+            if (type != Specification.NutrientType.Kcal)
+                NUTRIENTS[i++] = type;
+    }
+
+    private final Format format;
+
+    private final String[] columns;
+
+    // reused for every row
+    private final String[] row;
+    private final StringBuilder line = new StringBuilder();
+
+    private int rows;
+
+
+    public RecordExporter(Format format)
+    {
+        this.format = format;
+
+        columns = new String[7 + NUTRIENTS.length];
+        columns[0] = "date";
+        columns[1] = "time";
+        columns[2] = "meal";
+        columns[3] = "description";
+        columns[4] = "quantity";
+        columns[5] = "unit";
+        columns[6] = "kcal";
+        for (int i = 0; i < NUTRIENTS.length; i++)
+            columns[7 + i] = NUTRIENTS[i].name() + "_" + DailySummary.getCanonicalUnit(NUTRIENTS[i]).name();
+        row = new String[columns.length];
+    }
+
+    /**
+     * @param writer Is buffered by the exporter, but not closed
+     * @return Number of exported rows
+     */
+    public int export(RecordManager recordManager, Writer writer) throws IOException
+    {
+        rows = 0;
+        final BufferedWriter out = new BufferedWriter(writer);
+
+        if (format == Format.CSV)
+        {
+            System.arraycopy(columns, 0, row, 0, columns.length);
+            writeRow(out);
+        }
+
+        recordManager.forEachRecord(new RecordManager.RecordVisitor()
+        {
+            @Override
+            public void visit(DailyRecord record) throws IOException
+            {
+                writeRecord(record, out);
+            }
+        });
+
+        out.flush();
+        return rows;
+    }
+
+    private void writeRecord(DailyRecord record, BufferedWriter out) throws IOException
+    {
+        List<Pair<Specification, SimpleCalendar>> entries = record.asList();
+
+        // a checkpoint ends the meal of all entries since the previous one
+        String[] meals = new String[entries.size()];
+        String meal = null;
+        for (int i = entries.size() - 1; i >= 0; i--)
+        {
+            String checkpoint = record.getMealCheckpoint(i);
+            if (checkpoint != null)
+                meal = checkpoint;
+            meals[i] = meal;
+        }
+
+        String date = record.getDate().format();
+        for (int i = 0; i < entries.size(); i++)
+        {
+            Specification specification = entries.get(i).first;
+            SimpleCalendar added = entries.get(i).second;
+            FoodQuantity quantity = specification.getAmount();
+
+            row[0] = date;
+            row[1] = added != null ? formatTime(added) : null;
+            row[2] = meals[i];
+            row[3] = specification.getDescription();
+            row[4] = quantity != null ? formatNumber(quantity.getQuantifier()) : null;
+            row[5] = quantity != null ? quantity.getDetailedUnit() : null;
+            row[6] = formatNumber(specification.getCalories());
+            for (int j = 0; j < NUTRIENTS.length; j++)
+                row[7 + j] = formatNutrient(specification, NUTRIENTS[j]);
+
+            writeRow(out);
+            rows++;
+        }
+    }
+
+    private static String formatTime(SimpleCalendar calendar)
+    {
+        return (calendar.getHour() < 10 ? "0" : "") + calendar.getHour() + ":"
+                + (calendar.getMinute() < 10 ? "0" : "") + calendar.getMinute();
+    }
+
+    /**
+     * @return Amount in the canonical unit or <code>null</code> if it isn't specified or can't be converted
+     */
+    private static String formatNutrient(Specification specification, Specification.NutrientType type)
+    {
+        NutrientQuantity quantity = specification.getNutrient(type);
+        if (quantity == null)
+            return null;
+        try
+        {
+            return formatNumber(UnitConverter.convert(quantity,
+                    new NutrientQuantity(1, DailySummary.getCanonicalUnit(type)), type));
+        } catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    private static String formatNumber(float number)
+    {
+        if (Float.isNaN(number) || Float.isInfinite(number))
+            return null;
+        if (number == (long) number)
+            return Long.toString((long) number);
+        return Float.toString(number);
+    }
+
+    /**
+     * Writes the current row
+     */
+    private void writeRow(BufferedWriter out) throws IOException
+    {
+        line.setLength(0);
+        if (format == Format.CSV)
+        {
+            for (int i = 0; i < row.length; i++)
+            {
+                if (i > 0)
+                    line.append(',');
+                if (row[i] != null)
+                    appendCsv(row[i]);
+            }
+        } else
+        {
+            line.append('{');
+            boolean first = true;
+            for (int i = 0; i < row.length; i++)
+            {
+                if (row[i] == null)
+                    continue;
+                if (!first)
+                    line.append(',');
+                first = false;
+                appendJsonString(columns[i]);
+                line.append(':');
+                if (isText(i))
+                    appendJsonString(row[i]);
+                else
+                    line.append(row[i]);
+            }
+            line.append('}');
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    /**
+     * @return Whether the column contains text instead of numbers
+     */
+    private static boolean isText(int column)
+    {
+        return column <= 3 || column == 5;
+    }
+
+    private void appendCsv(String value)
+    {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++)
+        {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote)
+        {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"')
+                line.append('"');
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private void appendJsonString(String value)
+    {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        line.append(String.format("\\u%04x", (int) c));
+                    else
+                        line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * @param name "csv" or "jsonl"
+     * @return Format or <code>null</code> if the name is unknown
+     */
+    public static Format getFormat(String name)
+    {
+        for (Format format : Format.values())
+            if (format.name().equalsIgnoreCase(name))
+                return format;
+        return null;
+    }
+
+    /**
+     * Exports the records of the store that is selected in the preferences without modifying them
+     *
+     * @param args Format ("csv" or "jsonl") and optionally the output file; standard output is used if it is missing
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1 || args.length > 2 || getFormat(args[0]) == null)
+        {
+            System.err.println("Usage: RecordExporter csv|jsonl [file]");
+            System.exit(1);
+        }
+
+        // the items aren't needed, since the records contain their nutrients
+        RecordManager recordManager = Console.createRecordManager(null, true);
+        RecordExporter exporter = new RecordExporter(getFormat(args[0]));
+        try
+        {
+            if (args.length == 2)
+            {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(args[1]), StandardCharsets.UTF_8))
+                {
+                    int rows = exporter.export(recordManager, writer);
+                    System.err.println("Exported " + rows + " entries to " + args[1]);
+                }
+            } else
+            {
+                exporter.export(recordManager, new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
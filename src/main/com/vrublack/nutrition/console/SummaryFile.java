@@ -0,0 +1,96 @@
+package com.vrublack.nutrition.console;
+
+
+import com.vrublack.nutrition.core.DailySummary;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the daily summaries of a record manager. Every saved summary is appended, so later summaries of a day replace
+ * earlier ones. When the file is read and mostly consists of replaced summaries, it is rewritten.
+ */
+class SummaryFile
+{
+    // a file with fewer replaced summaries than this isn't rewritten
+    private final static int MIN_REPLACED = 64;
+
+    private final File file;
+
+    SummaryFile(File file)
+    {
+        this.file = file;
+    }
+
+    synchronized Map<Integer, DailySummary> load()
+    {
+        Map<Integer, DailySummary> summaries = new HashMap<>();
+        if (!file.exists())
+            return summaries;
+
+        int read = 0;
+        try
+        {
+            byte[] data = Files.readAllBytes(file.toPath());
+            ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+            DataInputStream in = new DataInputStream(bytes);
+            int complete = 0;
+            try
+            {
+                while (bytes.available() > 0)
+                {
+                    DailySummary summary = DailySummary.read(in);
+                    summaries.put(summary.getEpochDay(), summary);
+                    complete = data.length - bytes.available();
+                    read++;
+                }
+            } catch (EOFException e)
+            {
+                // the last summary is incomplete and is computed again, but it has to be removed before appending
+                try (RandomAccessFile truncated = new RandomAccessFile(file, "rw"))
+                {
+                    truncated.setLength(complete);
+                }
+            }
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        if (read - summaries.size() > Math.max(MIN_REPLACED, summaries.size()))
+            rewrite(summaries);
+
+        return summaries;
+    }
+
+    synchronized void append(DailySummary summary)
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true))))
+        {
+            summary.write(out);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void rewrite(Map<Integer, DailySummary> summaries)
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                for (DailySummary summary : summaries.values())
+                    summary.write(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -23,6 +23,9 @@ public class TextFormatter extends Formatter
             NutrientQuantity.Unit.g, NutrientQuantity.Unit.Percent, NutrientQuantity.Unit.Percent, NutrientQuantity.Unit.Percent,
             NutrientQuantity.Unit.Percent, NutrientQuantity.Unit.Percent, NutrientQuantity.Unit.Percent, NutrientQuantity.Unit.Percent);
 
+    private final static String[] abbreviatedMonths = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep",
+            "Oct", "Nov", "Dec"};
+
     private List<Specification.NutrientType> shownNutrients;
     private List<NutrientQuantity.Unit> desiredUnits;
 
@@ -52,6 +55,19 @@ public class TextFormatter extends Formatter
             this.desiredUnits = defaultDesiredUnits;
     }
 
+    public List<Specification.NutrientType> getShownNutrients()
+    {
+        return shownNutrients;
+    }
+
+    /**
+     * @return Unit of the shown nutrient with the same index
+     */
+    public List<NutrientQuantity.Unit> getDesiredUnits()
+    {
+        return desiredUnits;
+    }
+
     /**
      * @return Default nutrient type in it's corresponding unit from getDefaultUnits()
      */
@@ -328,6 +344,14 @@ public class TextFormatter extends Formatter
             return new SimpleDateFormat("dd.MM.yyyy").format(calendar.getTime());
     }
 
+    /**
+     * Same as format(calendar, true), without creating date formats for every row of long reports
+     */
+    private static String formatAbbreviated(SimpleCalendar date)
+    {
+        return (date.getDay() < 10 ? "0" : "") + date.getDay() + " " + abbreviatedMonths[date.getMonth() - 1];
+    }
+
     /**
      * @param record
      * @return Entries from record, numbered from 1 to n
@@ -348,6 +372,15 @@ public class TextFormatter extends Formatter
 
     @Override
     public String format(DailyRecord[] lastDays)
+    {
+        DailySummary[] summaries = new DailySummary[lastDays.length];
+        for (int i = 0; i < lastDays.length; i++)
+            summaries[i] = DailySummary.of(lastDays[i]);
+        return format(summaries);
+    }
+
+    @Override
+    public String format(DailySummary[] lastDays)
     {
         // + 4 for header, 2 blank lines and total stats
         final int matrixHeight = lastDays.length + 4;
@@ -369,51 +402,34 @@ public class TextFormatter extends Formatter
         matrix.setRow(0, headerRow.toArray(new String[headerRow.size()]));
         matrix.setRow(1, emptyLine);
 
-        List<Specification> daySpecifications = new ArrayList<>();
-        for (DailyRecord dailyRecord : lastDays)
-        {
-            // compute the total amounts
-
-            List<Specification> specifications = new ArrayList<>();
-            for (Pair<Specification, SimpleCalendar> p : dailyRecord.asList())
-                specifications.add(p.first);
-            SpecificationList specificationList = new SpecificationList(specifications, shownNutrients, desiredUnits);
-
-            DirectSpecification daySpecification = new DirectSpecification();
-            List<Float> totals = specificationList.getTotals();
-            List<NutrientQuantity.Unit> defaultUnits = specificationList.getDefaultUnits();
+        float totalKcal = 0;
+        float[] totals = new float[shownNutrients.size()];
 
-            for (int i = 0; i < totals.size(); i++)
-            {
-                Float total = totals.get(i);
-                Specification.NutrientType nutrient = shownNutrients.get(i);
-                daySpecification.putNutrient(nutrient, new NutrientQuantity(total, defaultUnits.get(i)));
-            }
-            daySpecification.setCalories(specificationList.getTotalKcal());
-            String dateStr = format(RecordManager.getCalendar(dailyRecord.getDate()), true);
-            daySpecification.setDescription(dateStr);
-            daySpecifications.add(daySpecification);
-        }
-        SpecificationList specificationList = new SpecificationList(daySpecifications, shownNutrients, desiredUnits);
-        List<Map<String, NutrientQuantity>> columns = specificationList.getNutrientColumns();
-
-        for (int i = 0; i < daySpecifications.size(); i++)
+        for (int i = 0; i < lastDays.length; i++)
         {
             // reversed because the older entries should be shown first like in a daily record
-            Specification entry = daySpecifications.get(daySpecifications.size() - i - 1);
+            DailySummary summary = lastDays[lastDays.length - i - 1];
 
             List<String> newRow = new ArrayList<>();
-            newRow.add(entry.toString());
-            newRow.add(format(entry.getCalories()));
+            newRow.add(formatAbbreviated(summary.getDate()));
+            newRow.add(format(summary.getKcal()));
+            totalKcal += summary.getKcal();
             for (int i1 = 0; i1 < shownNutrients.size(); i1++)
             {
                 Specification.NutrientType type = shownNutrients.get(i1);
-                NutrientQuantity quantity = columns.get(i1).get(entry.getId());
-                String formattedAmount = format(quantity.getAmountInUnit());
-                if (!formattedAmount.equals("-") &&
-                        quantity.getUnit() != specificationList.getDefaultUnits().get(i1))
+                NutrientQuantity.Unit unit = desiredUnits.get(i1);
+                String formattedAmount;
+                try
                 {
-                    formattedAmount += " " + format(quantity.getUnit());
+                    float amount = UnitConverter.convert(summary.getNutrient(type), new NutrientQuantity(1, unit), type);
+                    totals[i1] += amount;
+                    formattedAmount = format(amount);
+                } catch (IllegalArgumentException e)
+                {
+                    // shown in the canonical unit and not included in the average
+                    formattedAmount = format(summary.getAmount(type));
+                    if (!formattedAmount.equals("-"))
+                        formattedAmount += " " + format(DailySummary.getCanonicalUnit(type));
                 }
                 newRow.add(formattedAmount);
             }
@@ -426,12 +442,10 @@ public class TextFormatter extends Formatter
         List<String> totalStatsRow = new ArrayList<>();
         totalStatsRow.add("AVERAGE");
         final int n = lastDays.length;
-        totalStatsRow.add(format(specificationList.getTotalKcal() / n));
-        List<Float> totals = specificationList.getTotals();
+        totalStatsRow.add(format(totalKcal / n));
         for (int i = 0; i < shownNutrients.size(); i++)
         {
-            Specification.NutrientType type = shownNutrients.get(i);
-            totalStatsRow.add(format(totals.get(i) / n) + " " + format(desiredUnits.get(i)));
+            totalStatsRow.add(format(totals[i] / n) + " " + format(desiredUnits.get(i)));
         }
 
         matrix.setRow(lastDays.length + 3, totalStatsRow.toArray(new String[totalStatsRow.size()]));
@@ -439,6 +453,134 @@ public class TextFormatter extends Formatter
         return matrix.formatToString();
     }
 
+    /**
+     * @param today Epoch day of today, which isn't included because it isn't complete yet
+     * @return Averages of the shown nutrients over several periods and the trend of the last month
+     */
+    public String formatAverages(NutrientAggregator aggregator, int today)
+    {
+        final int[] periods = {7, 30, 90, 365};
+        final int trendPeriod = 30;
+
+        TextMatrix matrix = new TextMatrix(shownNutrients.size() + 3, periods.length + 4);
+
+        List<String> headerRow = new ArrayList<>(Arrays.asList("PERIOD", "DAYS", "CAL"));
+        for (Specification.NutrientType type : shownNutrients)
+            headerRow.add(format(type).toUpperCase());
+        matrix.setRow(0, headerRow.toArray(new String[headerRow.size()]));
+        matrix.setRow(1, emptyRow(headerRow.size()));
+
+        for (int i = 0; i < periods.length; i++)
+        {
+            int from = today - periods[i];
+            List<String> row = new ArrayList<>();
+            row.add("LAST " + periods[i]);
+            row.add(Integer.toString(aggregator.getDays(from, today)));
+            row.add(formatAmount(aggregator.getAverage(Specification.NutrientType.Kcal, from, today),
+                    Specification.NutrientType.Kcal, null, false));
+            for (int j = 0; j < shownNutrients.size(); j++)
+                row.add(formatAmount(aggregator.getAverage(shownNutrients.get(j), from, today), shownNutrients.get(j),
+                        desiredUnits.get(j), false));
+            matrix.setRow(i + 2, row.toArray(new String[row.size()]));
+        }
+
+        matrix.setRow(periods.length + 2, emptyRow(headerRow.size()));
+
+        // change per week
+        List<String> trendRow = new ArrayList<>(Arrays.asList("TREND / WEEK", ""));
+        int from = today - trendPeriod;
+        trendRow.add(formatSigned(aggregator.getTrend(Specification.NutrientType.Kcal, from, today) * 7,
+                Specification.NutrientType.Kcal, null, false));
+        for (int j = 0; j < shownNutrients.size(); j++)
+            trendRow.add(formatSigned(aggregator.getTrend(shownNutrients.get(j), from, today) * 7,
+                    shownNutrients.get(j), desiredUnits.get(j), false));
+        matrix.setRow(periods.length + 3, trendRow.toArray(new String[trendRow.size()]));
+
+        return matrix.formatToString();
+    }
+
+    /**
+     * @param unit  Unit that the amounts should be shown in or null for the canonical unit
+     * @param today Epoch day of today, which isn't included because it isn't complete yet
+     * @param weeks Number of weeks before today
+     * @return Average, minimum, maximum and moving average of the nutrient by week
+     */
+    public String formatWeeks(NutrientAggregator aggregator, Specification.NutrientType type,
+                              NutrientQuantity.Unit unit, int today, int weeks)
+    {
+        final int movingAverageWeeks = 4;
+
+        TextMatrix matrix = new TextMatrix(6, weeks + 2);
+        matrix.setRow(0, new String[]{"WEEK", "DAYS", "AVERAGE", "MIN", "MAX", movingAverageWeeks + " WEEKS"});
+        matrix.setRow(1, emptyRow(6));
+
+        for (int i = 0; i < weeks; i++)
+        {
+            int to = today - 7 * (weeks - i - 1);
+            int from = to - 7;
+            matrix.setRow(i + 2, new String[]{
+                    formatAbbreviated(SimpleCalendar.fromEpochDay(from)),
+                    Integer.toString(aggregator.getDays(from, to)),
+                    formatAmount(aggregator.getAverage(type, from, to), type, unit, true),
+                    formatAmount(aggregator.getMin(type, from, to), type, unit, true),
+                    formatAmount(aggregator.getMax(type, from, to), type, unit, true),
+                    formatAmount(aggregator.getAverage(type, to - 7 * movingAverageWeeks, to), type, unit, true)
+            });
+        }
+
+        String trend = formatSigned(aggregator.getTrend(type, today - 7 * weeks, today) * 7, type, unit, true);
+        return matrix.formatToString() + "\nTrend: " + trend + " per week";
+    }
+
+    private static String[] emptyRow(int width)
+    {
+        String[] row = new String[width];
+        Arrays.fill(row, "");
+        return row;
+    }
+
+    /**
+     * @param amount Amount in the canonical unit of the nutrient (see DailySummary), NaN if unknown
+     * @param unit   Unit that the amount should be converted into or null to keep the canonical unit
+     */
+    private String formatAmount(double amount, Specification.NutrientType type, NutrientQuantity.Unit unit,
+                                boolean showUnit)
+    {
+        if (Double.isNaN(amount))
+            return "-";
+        if (type == Specification.NutrientType.Kcal)
+            return format((float) amount) + (showUnit ? " kcal" : "");
+
+        NutrientQuantity.Unit canonicalUnit = DailySummary.getCanonicalUnit(type);
+        if (unit != null && unit != canonicalUnit)
+        {
+            try
+            {
+                float converted = UnitConverter.convert(new NutrientQuantity((float) amount, canonicalUnit),
+                        new NutrientQuantity(1, unit), type);
+                return format(converted) + (showUnit ? " " + format(unit) : "");
+            } catch (IllegalArgumentException e)
+            {
+                // show in the canonical unit
+            }
+        }
+        String formatted = format((float) amount);
+        if (showUnit || unit != null && unit != canonicalUnit)
+            formatted += " " + format(canonicalUnit);
+        return formatted;
+    }
+
+    private String formatSigned(double amount, Specification.NutrientType type, NutrientQuantity.Unit unit,
+                                boolean showUnit)
+    {
+        if (Double.isNaN(amount))
+            return "-";
+        String formatted = formatAmount(Math.abs(amount), type, unit, showUnit);
+        if (formatted.startsWith("-"))
+            return "0";
+        return (amount < 0 ? "-" : "+") + formatted;
+    }
+
     @Override
     public String format(Specification.NutrientType nutrientType)
     {
@@ -0,0 +1,364 @@
+package com.vrublack.nutrition.core;
+
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Reduces the number of searches that reach a remote source while the user is typing:
+ * <ul>
+ * <li>Autocomplete searches are only sent after a quiet period without further keystrokes. A search that is
+ * superseded by a newer one before that is cancelled.</li>
+ * <li>Identical searches that are in flight at the same time share one request.</li>
+ * <li>The results of recent queries are kept for a while and returned again for the same query.</li>
+ * <li>Only if the source matches the beginnings of words: if the results for a shorter prefix of the query fit on one
+ * page, they already contain every result for the longer query, so they are filtered locally instead. A keyword
+ * search (like FatSecret's) may find nothing for a partial word, so this isn't done by default.</li>
+ * </ul>
+ */
+public class CoalescingFoodSource implements FutureFoodDataSource
+{
+    public final static long DEFAULT_QUIET_PERIOD_MS = 250;
+
+    public final static long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    // how many queries the results are kept for
+    private final static int CACHED_QUERIES = 64;
+
+    private final static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("Search debounce"));
+
+    private final FutureFoodDataSource source;
+
+    private final long quietPeriodMs;
+
+    private final long ttlMs;
+
+    private final boolean prefixMatching;
+
+    private final int pageSize;
+
+    // by normalized query
+    private final Map<String, CompletableFuture<List<SearchResultItem>>> inFlight = new HashMap<>();
+
+    // by normalized query; access order for LRU
+    private final Map<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Page> eldest)
+        {
+            return size() > CACHED_QUERIES;
+        }
+    };
+
+    // autocomplete search that waits for the quiet period to pass
+    private CompletableFuture<List<SearchResultItem>> pendingSearch;
+    private ScheduledFuture<?> pendingTask;
+
+    private final AtomicInteger remoteSearches = new AtomicInteger();
+    private final AtomicInteger sharedSearches = new AtomicInteger();
+    private final AtomicInteger localSearches = new AtomicInteger();
+    private final AtomicInteger supersededSearches = new AtomicInteger();
+
+
+    /**
+     * @param source Remote source with keyword search
+     */
+    public CoalescingFoodSource(FutureFoodDataSource source)
+    {
+        this(source, DEFAULT_QUIET_PERIOD_MS, DEFAULT_TTL_MS, false, 0);
+    }
+
+    /**
+     * @param source         Remote source
+     * @param quietPeriodMs  How long an autocomplete search waits for further keystrokes before it is sent
+     * @param ttlMs          How long the results of a query are reused
+     * @param prefixMatching Whether a word of a query matches every word of a description that starts with it, so
+     *                       that the results of a query contain those of every longer query
+     * @param pageSize       Maximum number of results that the source returns for one search. Fewer results mean
+     *                       that the source returned every match. Only used if prefixMatching is true.
+     */
+    public CoalescingFoodSource(FutureFoodDataSource source, long quietPeriodMs, long ttlMs, boolean prefixMatching,
+                                int pageSize)
+    {
+        this.source = source;
+        this.quietPeriodMs = quietPeriodMs;
+        this.ttlMs = ttlMs;
+        this.prefixMatching = prefixMatching;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public CompletableFuture<List<SearchResultItem>> search(final String searchStr, final SearchHistory history,
+                                                            final boolean autocomplete)
+    {
+        final String query = normalize(searchStr);
+
+        synchronized (this)
+        {
+            // every new search makes a pending autocomplete search obsolete
+            if (pendingSearch != null)
+            {
+                pendingTask.cancel(false);
+                pendingSearch.cancel(false);
+                pendingSearch = null;
+                supersededSearches.incrementAndGet();
+            }
+
+            List<SearchResultItem> local = searchLocally(query);
+            if (local != null)
+            {
+                localSearches.incrementAndGet();
+                return CompletableFuture.completedFuture(local);
+            }
+
+            if (!autocomplete)
+                return searchShared(query, searchStr, history, false);
+
+            final CompletableFuture<List<SearchResultItem>> result = new CompletableFuture<>();
+            pendingSearch = result;
+            pendingTask = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (CoalescingFoodSource.this)
+                    {
+                        if (pendingSearch != result)
+                            return;
+                        pendingSearch = null;
+                    }
+
+                    // the results for a prefix may have arrived during the quiet period
+                    List<SearchResultItem> local = searchLocally(query);
+                    if (local != null)
+                    {
+                        localSearches.incrementAndGet();
+                        result.complete(local);
+                    } else
+                    {
+                        forward(searchShared(query, searchStr, history, true), result);
+                    }
+                }
+            }, quietPeriodMs, TimeUnit.MILLISECONDS);
+            return result;
+        }
+    }
+
+    /**
+     * Sends the search, unless the same search is already in flight
+     *
+     * @return Future that can be cancelled without affecting other callers
+     */
+    private CompletableFuture<List<SearchResultItem>> searchShared(final String query, String searchStr,
+                                                                   SearchHistory history, boolean autocomplete)
+    {
+        final CompletableFuture<List<SearchResultItem>> shared;
+        synchronized (inFlight)
+        {
+            CompletableFuture<List<SearchResultItem>> existing = inFlight.get(query);
+            if (existing != null)
+            {
+                sharedSearches.incrementAndGet();
+                return copy(existing);
+            }
+
+            remoteSearches.incrementAndGet();
+            shared = source.search(searchStr, history, autocomplete);
+            inFlight.put(query, shared);
+        }
+
+        shared.whenComplete(new BiConsumer<List<SearchResultItem>, Throwable>()
+        {
+            @Override
+            public void accept(List<SearchResultItem> results, Throwable throwable)
+            {
+                synchronized (inFlight)
+                {
+                    inFlight.remove(query);
+                }
+                if (results != null)
+                {
+                    synchronized (CoalescingFoodSource.this)
+                    {
+                        pages.put(query, new Page(results, prefixMatching && results.size() < pageSize));
+                    }
+                }
+            }
+        });
+        return copy(shared);
+    }
+
+    /**
+     * @return Results from the cache or <code>null</code> if the query has to be sent
+     */
+    private synchronized List<SearchResultItem> searchLocally(String query)
+    {
+        Page exact = getPage(query);
+        if (exact != null)
+            return new ArrayList<>(exact.results);
+
+        if (!prefixMatching)
+            return null;
+
+        // longest prefix first, since it has the fewest results to filter
+        for (int length = query.length() - 1; length > 0; length--)
+        {
+            Page page = getPage(query.substring(0, length));
+            if (page != null && page.complete)
+                return filter(page.results, query);
+        }
+        return null;
+    }
+
+    /**
+     * @return Results of the query or <code>null</code> if they aren't cached or have expired
+     */
+    private Page getPage(String query)
+    {
+        Page page = pages.get(query);
+        if (page != null && System.currentTimeMillis() - page.createdAt > ttlMs)
+        {
+            pages.remove(query);
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * @return Results in which every word of the query is the beginning of a word of the description
+     */
+    private static List<SearchResultItem> filter(List<SearchResultItem> results, String query)
+    {
+        String[] queryWords = query.split(" ");
+        List<SearchResultItem> filtered = new ArrayList<>();
+        for (SearchResultItem result : results)
+        {
+            String[] words = result.getDescription().toLowerCase().split("[^\\p{L}\\p{N}]+");
+            boolean matches = true;
+            for (String queryWord : queryWords)
+            {
+                boolean found = false;
+                for (String word : words)
+                {
+                    if (word.startsWith(queryWord))
+                    {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found)
+                {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches)
+                filtered.add(result);
+        }
+        return filtered;
+    }
+
+    private static String normalize(String query)
+    {
+        return query.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * @return Dependent future with its own copy of the list, so that cancelling it doesn't cancel the original
+     */
+    private static CompletableFuture<List<SearchResultItem>> copy(CompletableFuture<List<SearchResultItem>> future)
+    {
+        return future.thenApply(new Function<List<SearchResultItem>, List<SearchResultItem>>()
+        {
+            @Override
+            public List<SearchResultItem> apply(List<SearchResultItem> results)
+            {
+                return new ArrayList<>(results);
+            }
+        });
+    }
+
+    private static <T> void forward(CompletableFuture<T> from, final CompletableFuture<T> to)
+    {
+        from.whenComplete(new BiConsumer<T, Throwable>()
+        {
+            @Override
+            public void accept(T value, Throwable throwable)
+            {
+                if (throwable != null)
+                    to.completeExceptionally(throwable);
+                else
+                    to.complete(value);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<FoodItem> retrieve(String id, SearchHistory history)
+    {
+        return source.retrieve(id, history);
+    }
+
+    @Override
+    public CompletableFuture<FoodItem> get(String id)
+    {
+        return source.get(id);
+    }
+
+    /**
+     * @return Searches that were sent to the source
+     */
+    public int getRemoteSearches()
+    {
+        return remoteSearches.get();
+    }
+
+    /**
+     * @return Searches that were answered by a request that was already in flight
+     */
+    public int getSharedSearches()
+    {
+        return sharedSearches.get();
+    }
+
+    /**
+     * @return Searches that were answered from the results of the same query or of a prefix
+     */
+    public int getLocalSearches()
+    {
+        return localSearches.get();
+    }
+
+    /**
+     * @return Autocomplete searches that were cancelled because a newer search came in during the quiet period
+     */
+    public int getSupersededSearches()
+    {
+        return supersededSearches.get();
+    }
+
+    private static class Page
+    {
+        private final List<SearchResultItem> results;
+
+        // whether the source returned every match and matches prefixes
+        private final boolean complete;
+
+        private final long createdAt = System.currentTimeMillis();
+
+        Page(List<SearchResultItem> results, boolean complete)
+        {
+            this.results = results;
+            this.complete = complete;
+        }
+    }
+}
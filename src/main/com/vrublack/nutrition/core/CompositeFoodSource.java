@@ -1,69 +1,213 @@
 package com.vrublack.nutrition.core;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * Combines to food sources into one
+ * Combines several food sources into one. Searches run concurrently and their results are merged by score.
  */
 public class CompositeFoodSource implements SyncFoodDataSource
 {
     // Composite design pattern
 
-    private SyncFoodDataSource left;
-    private SyncFoodDataSource right;
+    /**
+     * How long a search waits for each source by default
+     */
+    public final static long DEFAULT_DEADLINE_MS = 5000;
+
+    // shared by all composites; daemon threads so that a hanging source can't keep the application alive
+    private final static ExecutorService executor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Composite food search"));
+
+    private final SyncFoodDataSource[] sources;
+
+    private final long deadlineMs;
+
+    private final int limit;
+
+    private final static Comparator<SearchResultItem> SCORE_DESCENDING = new Comparator<SearchResultItem>()
+    {
+        @Override
+        public int compare(SearchResultItem o1, SearchResultItem o2)
+        {
+            // items without a valid score (e. g. from a database without popularity data) go last
+            float s1 = Float.isNaN(o1.getSearchScore()) ? Float.NEGATIVE_INFINITY : o1.getSearchScore();
+            float s2 = Float.isNaN(o2.getSearchScore()) ? Float.NEGATIVE_INFINITY : o2.getSearchScore();
+            return Float.compare(s2, s1);
+        }
+    };
 
 
     public CompositeFoodSource(SyncFoodDataSource left, SyncFoodDataSource right)
     {
-        this.left = left;
-        this.right = right;
+        this(DEFAULT_DEADLINE_MS, Integer.MAX_VALUE, left, right);
+    }
+
+    /**
+     * @param deadlineMs How long a search waits for each source. A source that doesn't respond in time contributes no
+     *                   results.
+     * @param limit      Maximum number of results that a search returns
+     * @param sources    In order of precedence: results with equal scores and retrieval of an id prefer earlier sources
+     */
+    public CompositeFoodSource(long deadlineMs, int limit, SyncFoodDataSource... sources)
+    {
+        this.sources = sources;
+        this.deadlineMs = deadlineMs;
+        this.limit = limit;
     }
 
     @Override
-    public List<SearchResultItem> search(String searchStr, SearchHistory history, boolean autocomplete)
+    public List<SearchResultItem> search(final String searchStr, final SearchHistory history, final boolean autocomplete)
     {
-        List<SearchResultItem> leftResults = left.search(searchStr, history, autocomplete);
-        List<SearchResultItem> rightResults = right.search(searchStr, history, autocomplete);
+        List<Future<List<SearchResultItem>>> futures = new ArrayList<>(sources.length);
+        for (final SyncFoodDataSource source : sources)
+        {
+            futures.add(executor.submit(new Callable<List<SearchResultItem>>()
+            {
+                @Override
+                public List<SearchResultItem> call() throws Exception
+                {
+                    return source.search(searchStr, history, autocomplete);
+                }
+            }));
+        }
 
-        List<SearchResultItem> all = new ArrayList<>();
-        all.addAll(leftResults);
-        all.addAll(rightResults);
+        // all sources run at the same time, so every source gets the full deadline
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
 
-        Collections.sort(all, new Comparator<SearchResultItem>()
+        List<List<SearchResultItem>> resultLists = new ArrayList<>(sources.length);
+        for (Future<List<SearchResultItem>> future : futures)
         {
-            @Override
-            public int compare(SearchResultItem o1, SearchResultItem o2)
+            List<SearchResultItem> results = null;
+            try
+            {
+                results = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e)
             {
-                if (o1.getSearchScore() > o2.getSearchScore())
-                    return -1;
-                else if (o1.getSearchScore() == o2.getSearchScore())
-                    return 0;
-                else
-                    return 1;
+                System.err.println("Food source didn't respond within " + deadlineMs + " ms");
+                future.cancel(true);
+            } catch (ExecutionException e)
+            {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
             }
-        });
 
-        return all;
+            // a source that failed or timed out just doesn't contribute anything
+            if (results == null)
+                results = Collections.emptyList();
+            resultLists.add(results);
+        }
+
+        return merge(resultLists, limit);
+    }
+
+    /**
+     * K-way merge of the lists by descending score
+     *
+     * @param limit Stops after this many results
+     */
+    private static List<SearchResultItem> merge(List<List<SearchResultItem>> lists, int limit)
+    {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, lists.size()));
+        int total = 0;
+        for (int i = 0; i < lists.size(); i++)
+        {
+            List<SearchResultItem> list = lists.get(i);
+            if (!isSorted(list))
+            {
+                list = new ArrayList<>(list);
+                Collections.sort(list, SCORE_DESCENDING);
+            }
+            if (!list.isEmpty())
+                heads.add(new Cursor(list, i));
+            total += list.size();
+        }
+
+        List<SearchResultItem> merged = new ArrayList<>(Math.min(total, limit));
+        while (merged.size() < limit && !heads.isEmpty())
+        {
+            Cursor head = heads.poll();
+            merged.add(head.current());
+            if (head.advance())
+                heads.add(head);
+        }
+        return merged;
+    }
+
+    private static boolean isSorted(List<SearchResultItem> list)
+    {
+        for (int i = 1; i < list.size(); i++)
+            if (SCORE_DESCENDING.compare(list.get(i - 1), list.get(i)) > 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Position in one of the lists that are merged
+     */
+    private static class Cursor implements Comparable<Cursor>
+    {
+        private final List<SearchResultItem> list;
+
+        private final int sourceIndex;
+
+        private int pos;
+
+        Cursor(List<SearchResultItem> list, int sourceIndex)
+        {
+            this.list = list;
+            this.sourceIndex = sourceIndex;
+        }
+
+        SearchResultItem current()
+        {
+            return list.get(pos);
+        }
+
+        /**
+         * @return <code>false</code> if there are no more items
+         */
+        boolean advance()
+        {
+            return ++pos < list.size();
+        }
+
+        @Override
+        public int compareTo(Cursor o)
+        {
+            int c = SCORE_DESCENDING.compare(current(), o.current());
+            if (c != 0)
+                return c;
+            return Integer.compare(sourceIndex, o.sourceIndex);
+        }
     }
 
     @Override
     public FoodItem retrieve(String id, SearchHistory history)
     {
-        FoodItem item = left.retrieve(id, history);
-        if (item == null)
-            item = right.retrieve(id, history);
-        return item;
+        for (SyncFoodDataSource source : sources)
+        {
+            FoodItem item = source.retrieve(id, history);
+            if (item != null)
+                return item;
+        }
+        return null;
     }
 
     @Override
     public FoodItem get(String id)
     {
-        FoodItem item = left.get(id);
-        if (item == null)
-            item = right.get(id);
-        return item;
+        for (SyncFoodDataSource source : sources)
+        {
+            FoodItem item = source.get(id);
+            if (item != null)
+                return item;
+        }
+        return null;
     }
 }
@@ -20,8 +20,12 @@ public class DailyRecord implements Serializable, IsSerializable
 
     private Map<Integer, String> mealCheckpoints;
 
+    // whether the record was modified since it was loaded or saved
+    private transient volatile boolean dirty;
+
     public DailyRecord()
     {
+        dirty = true;
         entries = new ArrayList<>();
         date = new SimpleCalendar();
         addedDates = new ArrayList<>();
@@ -30,6 +34,7 @@ public class DailyRecord implements Serializable, IsSerializable
 
     public DailyRecord(SimpleCalendar date)
     {
+        dirty = true;
         this.date = date;
         // set hour and minute to 0 because only the day should be specified, the rest would
         // lead to unintended behaviour in date.compare
@@ -56,6 +61,7 @@ public class DailyRecord implements Serializable, IsSerializable
         if (mealCheckpoints == null)
             mealCheckpoints = new HashMap<>();
         mealCheckpoints.put(index, label);
+        dirty = true;
     }
 
     /**
@@ -70,6 +76,14 @@ public class DailyRecord implements Serializable, IsSerializable
             return mealCheckpoints.get(index);
     }
 
+    /**
+     * @return Labels of the meal checkpoints by index, or <code>null</code> in old records
+     */
+    Map<Integer, String> getMealCheckpoints()
+    {
+        return mealCheckpoints;
+    }
+
     public int getMealCheckpointNum()
     {
         if (mealCheckpoints == null)
@@ -102,6 +116,7 @@ public class DailyRecord implements Serializable, IsSerializable
     {
         entries.add(food);
         addedDates.add(time);
+        dirty = true;
     }
 
     /**
@@ -126,6 +141,7 @@ public class DailyRecord implements Serializable, IsSerializable
                 }
                 entries.remove(i);
                 addedDates.remove(i);
+                dirty = true;
 
                 return true;
             }
@@ -137,6 +153,31 @@ public class DailyRecord implements Serializable, IsSerializable
         entries = new ArrayList<>();
         addedDates = new ArrayList<>();
         mealCheckpoints = new HashMap<>();
+        dirty = true;
+    }
+
+    /**
+     * @return Whether the record was modified since it was loaded or saved
+     */
+    public boolean isDirty()
+    {
+        return dirty;
+    }
+
+    /**
+     * Called by the RecordManager after the record has been loaded or saved
+     */
+    public void markClean()
+    {
+        dirty = false;
+    }
+
+    /**
+     * Called by the RecordManager when the record is saved but written later
+     */
+    void markDirty()
+    {
+        dirty = true;
     }
 
     public SimpleCalendar getDate()
@@ -203,6 +244,7 @@ public class DailyRecord implements Serializable, IsSerializable
             dailyRecord.entries = entries;
             dailyRecord.addedDates = addedDates;
             dailyRecord.mealCheckpoints = mealCheckpoints;
+            dailyRecord.dirty = true;
         }
 
         public DailyRecord getDailyRecord()
@@ -0,0 +1,128 @@
+package com.vrublack.nutrition.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Totals of a daily record: calories and the amount of every nutrient in its canonical unit. Summaries are stored
+ * whenever a record is saved, so that reports over many days don't have to load the records.
+ */
+public class DailySummary
+{
+    private final static Specification.NutrientType[] TYPES = Specification.NutrientType.values();
+
+    private final int epochDay;
+
+    private final float kcal;
+
+    // by ordinal of the nutrient type, in its canonical unit
+    private final float[] amounts;
+
+
+    public DailySummary(int epochDay, float kcal, float[] amounts)
+    {
+        if (amounts.length != TYPES.length)
+            throw new IllegalArgumentException("amounts.length != number of nutrient types");
+        this.epochDay = epochDay;
+        this.kcal = kcal;
+        this.amounts = amounts;
+    }
+
+    /**
+     * Sums up the entries of the record. Amounts that can't be converted into the canonical unit are left out.
+     */
+    public static DailySummary of(DailyRecord record)
+    {
+        float kcal = 0;
+        float[] amounts = new float[TYPES.length];
+        for (Pair<Specification, SimpleCalendar> entry : record.asList())
+        {
+            Specification specification = entry.first;
+            kcal += specification.getCalories();
+            for (Specification.NutrientType type : TYPES)
+            {
+                NutrientQuantity quantity = specification.getNutrient(type);
+                if (quantity == null)
+                    continue;
+                try
+                {
+                    amounts[type.ordinal()] += UnitConverter.convert(quantity,
+                            new NutrientQuantity(1, getCanonicalUnit(type)), type);
+                } catch (IllegalArgumentException e)
+                {
+                    // leave out
+                }
+            }
+        }
+        return new DailySummary(record.getDate().toEpochDay(), kcal, amounts);
+    }
+
+    /**
+     * @return Unit of the daily reference amount if there is one, so that percentages can always be converted, or
+     * grams otherwise
+     */
+    public static NutrientQuantity.Unit getCanonicalUnit(Specification.NutrientType type)
+    {
+        NutrientQuantity reference = NutritionReferences.getDailyReference(type);
+        return reference != null ? reference.getUnit() : NutrientQuantity.Unit.g;
+    }
+
+    /**
+     * @return Date as days since 1970-01-01
+     */
+    public int getEpochDay()
+    {
+        return epochDay;
+    }
+
+    public SimpleCalendar getDate()
+    {
+        return SimpleCalendar.fromEpochDay(epochDay);
+    }
+
+    public float getKcal()
+    {
+        return kcal;
+    }
+
+    /**
+     * @return Amount in the canonical unit of the nutrient
+     */
+    public float getAmount(Specification.NutrientType type)
+    {
+        return amounts[type.ordinal()];
+    }
+
+    public NutrientQuantity getNutrient(Specification.NutrientType type)
+    {
+        return new NutrientQuantity(amounts[type.ordinal()], getCanonicalUnit(type));
+    }
+
+    /**
+     * Format: epoch day, calories, number of amounts and the amounts, so that nutrient types can be added
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(epochDay);
+        out.writeFloat(kcal);
+        out.writeByte(amounts.length);
+        for (float amount : amounts)
+            out.writeFloat(amount);
+    }
+
+    public static DailySummary read(DataInput in) throws IOException
+    {
+        int epochDay = in.readInt();
+        float kcal = in.readFloat();
+        int count = in.readUnsignedByte();
+        float[] amounts = new float[TYPES.length];
+        for (int i = 0; i < count; i++)
+        {
+            float amount = in.readFloat();
+            if (i < amounts.length)
+                amounts[i] = amount;
+        }
+        return new DailySummary(epochDay, kcal, amounts);
+    }
+}
@@ -34,6 +34,17 @@ public class DirectSpecification extends Specification implements Serializable
         calories = -1;
     }
 
+    /**
+     * Restores a specification that was stored before
+     *
+     * @param id Id of the stored specification
+     */
+    public DirectSpecification(String id)
+    {
+        this();
+        this.id = id;
+    }
+
     @Override
     public String getId()
     {
@@ -158,6 +169,14 @@ public class DirectSpecification extends Specification implements Serializable
         return description == null ? "(Direct input)" : description;
     }
 
+    /**
+     * @return Description that was set or <code>null</code>, unlike getDescription() which returns a default
+     */
+    public String getDescriptionOrNull()
+    {
+        return description;
+    }
+
     @Override
     public FoodQuantity getAmount()
     {
@@ -0,0 +1,20 @@
+package com.vrublack.nutrition.core;
+
+/**
+ * Finds food items by the data source they are from and their id, so that stored records only have to contain
+ * references to the items.
+ */
+public interface FoodItemResolver
+{
+    /**
+     * @return Name of the data source that the item is from, e.g. "usda", or <code>null</code> if unknown
+     */
+    String getSource(FoodItem item);
+
+    /**
+     * @param source Name returned by getSource()
+     * @param id     Id of the item within that source
+     * @return Item or <code>null</code> if it can't be found
+     */
+    FoodItem resolve(String source, String id);
+}
@@ -63,6 +63,19 @@ public class FoodSpecification extends Specification implements IsSerializable,
         init(foodItem, quantifier, unit, microNutrientsOnly, false);
     }
 
+    /**
+     * Restores a specification that was stored before. The quantity isn't converted.
+     *
+     * @param id Id of the stored specification
+     */
+    public FoodSpecification(FoodItem foodItem, FoodQuantity quantity, String id, boolean microNutrientsOnly)
+    {
+        this.foodItem = foodItem;
+        this.quantity = quantity;
+        this.id = id;
+        this.microNutrientsOnly = microNutrientsOnly;
+    }
+
     private void init(FoodItem foodItem, float quantifier, String unit, boolean microNutrientsOnly, boolean strict)
     {
         this.foodItem = foodItem;
@@ -127,6 +140,14 @@ public class FoodSpecification extends Specification implements IsSerializable,
         return foodItem.getDescription();
     }
 
+    /**
+     * @return If only micro nutrients are included and 0 is returned for all macros
+     */
+    public boolean isMicroNutrientsOnly()
+    {
+        return microNutrientsOnly;
+    }
+
     public FoodItem getFoodItem()
     {
         return foodItem;
@@ -25,6 +25,11 @@ public abstract class Formatter
      */
     public abstract String format(DailyRecord[] lastDays);
 
+    /**
+     * Displays the summaries of days and an average
+     */
+    public abstract String format(DailySummary[] lastDays);
+
     public String format(Specification specification)
     {
         if (specification instanceof DirectSpecification)
@@ -0,0 +1,40 @@
+package com.vrublack.nutrition.core;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interface for a data source for foodItem that can be searched. The operations are asynchronous and return futures.
+ * Cancelling a future that isn't done yet (e. g. a search for an autocomplete string that the user has already
+ * typed past) stops the underlying work where the implementation allows it. Timeouts can be applied by the caller with
+ * {@link CompletableFuture#orTimeout}, which cancels the work in the same way.
+ */
+public interface FutureFoodDataSource
+{
+
+    /**
+     * @param searchStr    String to search for
+     * @param history      The history to use
+     * @param autocomplete Whether to use autocomplete (set this to true if the user is still styping)
+     * @return Future with the list of results, which completes exceptionally if an error occurred
+     */
+    CompletableFuture<List<SearchResultItem>> search(String searchStr, SearchHistory history, boolean autocomplete);
+
+    /**
+     * Returns item, but also submits this request to the search history. This should only be called if the user selected this entry.
+     *
+     * @param id      ID
+     * @param history The history to use
+     * @return Future with the FoodItem with the specified id or <code>null</code> if no such items exists
+     */
+    CompletableFuture<FoodItem> retrieve(String id, SearchHistory history);
+
+    /**
+     * Returns item without submitting it to the search history.
+     *
+     * @param id ID
+     * @return Future with the FoodItem with the specified id or <code>null</code> if no such items exists
+     */
+    CompletableFuture<FoodItem> get(String id);
+
+}
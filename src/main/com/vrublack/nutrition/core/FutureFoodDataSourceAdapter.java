@@ -0,0 +1,127 @@
+package com.vrublack.nutrition.core;
+
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Adapter that runs a synchronous food data source on an executor. If a returned future is cancelled or times out
+ * before the operation finished, the thread that runs it is interrupted.
+ */
+public class FutureFoodDataSourceAdapter implements FutureFoodDataSource
+{
+    // shared by all adapters that don't get their own executor
+    private final static ExecutorService defaultExecutor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Food data source"));
+
+    private final SyncFoodDataSource syncFoodDataSource;
+
+    private final ExecutorService executor;
+
+    // 0 for no timeout
+    private final long timeoutMs;
+
+
+    public FutureFoodDataSourceAdapter(SyncFoodDataSource syncFoodDataSource)
+    {
+        this(syncFoodDataSource, defaultExecutor, 0);
+    }
+
+    /**
+     * @param executor  Runs the operations
+     * @param timeoutMs Operations that take longer fail with a TimeoutException, or 0 for no timeout
+     */
+    public FutureFoodDataSourceAdapter(SyncFoodDataSource syncFoodDataSource, ExecutorService executor, long timeoutMs)
+    {
+        this.syncFoodDataSource = syncFoodDataSource;
+        this.executor = executor;
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public CompletableFuture<List<SearchResultItem>> search(final String searchStr, final SearchHistory history,
+                                                            final boolean autocomplete)
+    {
+        return submit(new Callable<List<SearchResultItem>>()
+        {
+            @Override
+            public List<SearchResultItem> call() throws Exception
+            {
+                List<SearchResultItem> results = syncFoodDataSource.search(searchStr, history, autocomplete);
+                // the synchronous interface signals errors with null
+                if (results == null)
+                    throw new IOException("Search for \"" + searchStr + "\" failed");
+                return results;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<FoodItem> retrieve(final String id, final SearchHistory history)
+    {
+        return submit(new Callable<FoodItem>()
+        {
+            @Override
+            public FoodItem call() throws Exception
+            {
+                return syncFoodDataSource.retrieve(id, history);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<FoodItem> get(final String id)
+    {
+        return submit(new Callable<FoodItem>()
+        {
+            @Override
+            public FoodItem call() throws Exception
+            {
+                return syncFoodDataSource.get(id);
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(final Callable<T> callable)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        final Future<?> task = executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // may already have been cancelled while it was queued
+                if (result.isDone())
+                    return;
+
+                try
+                {
+                    result.complete(callable.call());
+                } catch (Throwable t)
+                {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+
+        // cancellation and timeouts also complete the future exceptionally
+        result.whenComplete(new BiConsumer<T, Throwable>()
+        {
+            @Override
+            public void accept(T value, Throwable throwable)
+            {
+                if (throwable != null)
+                    task.cancel(true);
+            }
+        });
+
+        if (timeoutMs > 0)
+            result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+
+        return result;
+    }
+}
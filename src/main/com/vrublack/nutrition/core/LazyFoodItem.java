@@ -0,0 +1,153 @@
+package com.vrublack.nutrition.core;
+
+/**
+ * Food item of a stored record. It knows the description and the nutrients for the quantity of the entry, which is
+ * enough to show the record. Only if anything else is needed, the actual item is resolved from its data source. If
+ * that fails, the values for the stored quantity are scaled where possible.
+ */
+class LazyFoodItem extends FoodItem
+{
+    private static final long serialVersionUID = 1;
+
+    private final String source;
+
+    private final String id;
+
+    private final String description;
+
+    // quantity that calories and nutrients are for
+    private final FoodQuantity quantity;
+
+    private final float calories;
+
+    // by ordinal of the nutrient type, null if the nutrient isn't specified
+    private final NutrientQuantity[] nutrients;
+
+    private transient FoodItemResolver resolver;
+
+    private transient boolean resolveAttempted;
+    private transient FoodItem resolved;
+
+
+    /**
+     * @param source    Data source of the item or <code>null</code> if unknown
+     * @param resolver  Resolves the item if needed or <code>null</code> to only use the stored values
+     * @param nutrients Nutrients per quantity by ordinal of the nutrient type
+     */
+    LazyFoodItem(String source, String id, String description, FoodQuantity quantity, float calories,
+                 NutrientQuantity[] nutrients, FoodItemResolver resolver)
+    {
+        this.source = source;
+        this.id = id;
+        this.description = description;
+        this.quantity = quantity;
+        this.calories = calories;
+        this.nutrients = nutrients;
+        this.resolver = resolver;
+    }
+
+    String getSource()
+    {
+        return source;
+    }
+
+    private synchronized FoodItem resolve()
+    {
+        if (!resolveAttempted && resolver != null && source != null)
+        {
+            resolveAttempted = true;
+            resolved = resolver.resolve(source, id);
+        }
+        return resolved;
+    }
+
+    private boolean isStoredQuantity(FoodQuantity q)
+    {
+        return q.getQuantifier() == quantity.getQuantifier() && equal(q.getSimpleUnit(), quantity.getSimpleUnit())
+                && equal(q.getDetailedUnit(), quantity.getDetailedUnit());
+    }
+
+    /**
+     * @return Factor from the stored quantity to q or -1 if the units differ
+     */
+    private float getFactor(FoodQuantity q)
+    {
+        if (quantity.getQuantifier() == 0 || !equal(q.getDetailedUnit(), quantity.getDetailedUnit()))
+            return -1;
+        return q.getQuantifier() / quantity.getQuantifier();
+    }
+
+    private static boolean equal(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String getId()
+    {
+        return id;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return description;
+    }
+
+    @Override
+    public float getCaloriesPerQuantity(FoodQuantity q)
+    {
+        if (isStoredQuantity(q))
+            return calories;
+
+        FoodItem item = resolve();
+        if (item != null)
+            return item.getCaloriesPerQuantity(q);
+
+        float factor = getFactor(q);
+        return factor < 0 ? 0 : calories * factor;
+    }
+
+    @Override
+    public float getRelativePopularity()
+    {
+        FoodItem item = resolve();
+        return item != null ? item.getRelativePopularity() : 0;
+    }
+
+    @Override
+    public NutrientQuantity getNutrientPerQuantity(Specification.NutrientType type, FoodQuantity q)
+    {
+        if (isStoredQuantity(q))
+            return nutrients[type.ordinal()];
+
+        FoodItem item = resolve();
+        if (item != null)
+            return item.getNutrientPerQuantity(type, q);
+
+        float factor = getFactor(q);
+        NutrientQuantity stored = nutrients[type.ordinal()];
+        return factor < 0 || stored == null ? null : stored.scale(factor);
+    }
+
+    @Override
+    public NutrientQuantity getNutrientOrZeroPerQuantity(Specification.NutrientType type, FoodQuantity q)
+    {
+        NutrientQuantity nutrient = getNutrientPerQuantity(type, q);
+        return nutrient != null ? nutrient : new NutrientQuantity(0, NutrientQuantity.Unit.g);
+    }
+
+    @Override
+    public String getAbbreviatedDescription()
+    {
+        FoodItem item = resolve();
+        return item != null ? item.getAbbreviatedDescription() : description;
+    }
+
+    @Override
+    public FoodQuantity[] getAcceptedUnits()
+    {
+        FoodItem item = resolve();
+        return item != null ? item.getAcceptedUnits() : new FoodQuantity[]{quantity};
+    }
+}
@@ -0,0 +1,277 @@
+package com.vrublack.nutrition.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Answers range queries over the daily totals of all nutrients, e.g. the average protein of a month or the highest
+ * calories of a week. For every nutrient, a segment tree over the epoch days keeps sums, minimums and maximums, so
+ * every query and every update of a day takes O(log n) for n days in the covered interval.
+ * <p>
+ * Ranges are given as epoch days, from inclusive and to exclusive. Days without a record don't count: averages are
+ * taken over the days that have a record and the minimum of a range with some empty days isn't 0. Calories are
+ * queried with the nutrient type Kcal, everything else in the canonical unit of the nutrient (see DailySummary).
+ */
+public class NutrientAggregator
+{
+    private final static Specification.NutrientType[] TYPES = Specification.NutrientType.values();
+
+    private final static int MIN_SIZE = 64;
+
+    private final TreeMap<Integer, DailySummary> summaries = new TreeMap<>();
+
+    // first day that is covered
+    private int origin;
+
+    // number of covered days (leaves), a power of two
+    private int size;
+
+    // trees by ordinal of the nutrient type; node i has the children 2i and 2i + 1, leaves start at size
+    private double[][] sums;
+    private float[][] mins;
+    private float[][] maxs;
+    // sums of x * value with x = day - origin, for trend lines
+    private double[][] weightedSums;
+
+    // same for all nutrients: days with a record, sum of x and of x^2
+    private int[] counts;
+    private double[] xs;
+    private double[] squaredXs;
+
+
+    public NutrientAggregator()
+    {
+        build(0, MIN_SIZE);
+    }
+
+    /**
+     * Adds the summary or replaces the previous one of that day
+     */
+    public synchronized void put(DailySummary summary)
+    {
+        int day = summary.getEpochDay();
+        summaries.put(day, summary);
+
+        if (day < origin || day >= origin + size)
+        {
+            // cover all days again, with room to grow in both directions
+            int first = Math.min(day, summaries.firstKey());
+            int last = Math.max(day, summaries.lastKey());
+            int newSize = size;
+            while (newSize < 2 * (last - first + 1))
+                newSize *= 2;
+            build(first - (newSize - (last - first + 1)) / 2, newSize);
+            return;
+        }
+
+        int node = size + day - origin;
+        setLeaf(node, summary);
+        for (node /= 2; node >= 1; node /= 2)
+            merge(node);
+    }
+
+    private void build(int origin, int size)
+    {
+        this.origin = origin;
+        this.size = size;
+
+        sums = new double[TYPES.length][2 * size];
+        mins = new float[TYPES.length][2 * size];
+        maxs = new float[TYPES.length][2 * size];
+        weightedSums = new double[TYPES.length][2 * size];
+        counts = new int[2 * size];
+        xs = new double[2 * size];
+        squaredXs = new double[2 * size];
+
+        for (int node = size; node < 2 * size; node++)
+            setLeaf(node, null);
+        for (Map.Entry<Integer, DailySummary> entry : summaries.entrySet())
+            setLeaf(size + entry.getKey() - origin, entry.getValue());
+        for (int node = size - 1; node >= 1; node--)
+            merge(node);
+    }
+
+    private void setLeaf(int node, DailySummary summary)
+    {
+        double x = node - size;
+        counts[node] = summary != null ? 1 : 0;
+        xs[node] = summary != null ? x : 0;
+        squaredXs[node] = summary != null ? x * x : 0;
+
+        for (Specification.NutrientType type : TYPES)
+        {
+            int t = type.ordinal();
+            if (summary == null)
+            {
+                sums[t][node] = 0;
+                weightedSums[t][node] = 0;
+                mins[t][node] = Float.POSITIVE_INFINITY;
+                maxs[t][node] = Float.NEGATIVE_INFINITY;
+            } else
+            {
+                float value = getValue(summary, type);
+                sums[t][node] = value;
+                weightedSums[t][node] = x * value;
+                mins[t][node] = value;
+                maxs[t][node] = value;
+            }
+        }
+    }
+
+    private void merge(int node)
+    {
+        int left = 2 * node;
+        int right = left + 1;
+        counts[node] = counts[left] + counts[right];
+        xs[node] = xs[left] + xs[right];
+        squaredXs[node] = squaredXs[left] + squaredXs[right];
+        for (int t = 0; t < TYPES.length; t++)
+        {
+            sums[t][node] = sums[t][left] + sums[t][right];
+            weightedSums[t][node] = weightedSums[t][left] + weightedSums[t][right];
+            mins[t][node] = Math.min(mins[t][left], mins[t][right]);
+            maxs[t][node] = Math.max(maxs[t][left], maxs[t][right]);
+        }
+    }
+
+    private static float getValue(DailySummary summary, Specification.NutrientType type)
+    {
+        return type == Specification.NutrientType.Kcal ? summary.getKcal() : summary.getAmount(type);
+    }
+
+    private interface Visitor
+    {
+        void visit(int node);
+    }
+
+    /**
+     * Visits the nodes that exactly cover [from, to), clipped to the covered days
+     */
+    private void query(int from, int to, Visitor visitor)
+    {
+        int l = Math.max(from, origin) - origin + size;
+        int r = Math.min(to, origin + size) - origin + size;
+        while (l < r)
+        {
+            if ((l & 1) == 1)
+                visitor.visit(l++);
+            if ((r & 1) == 1)
+                visitor.visit(--r);
+            l /= 2;
+            r /= 2;
+        }
+    }
+
+    /**
+     * @return Number of days with a record
+     */
+    public synchronized int getDays(int from, int to)
+    {
+        final int[] days = new int[1];
+        query(from, to, new Visitor()
+        {
+            @Override
+            public void visit(int node)
+            {
+                days[0] += counts[node];
+            }
+        });
+        return days[0];
+    }
+
+    public synchronized double getSum(Specification.NutrientType type, int from, int to)
+    {
+        final double[] sum = sums[type.ordinal()];
+        final double[] result = new double[1];
+        query(from, to, new Visitor()
+        {
+            @Override
+            public void visit(int node)
+            {
+                result[0] += sum[node];
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * @return Average of the days with a record or NaN if there are none
+     */
+    public synchronized double getAverage(Specification.NutrientType type, int from, int to)
+    {
+        int days = getDays(from, to);
+        return days == 0 ? Double.NaN : getSum(type, from, to) / days;
+    }
+
+    /**
+     * @return Lowest total of a day with a record or NaN if there are none
+     */
+    public synchronized float getMin(Specification.NutrientType type, int from, int to)
+    {
+        final float[] min = mins[type.ordinal()];
+        final float[] result = {Float.POSITIVE_INFINITY};
+        query(from, to, new Visitor()
+        {
+            @Override
+            public void visit(int node)
+            {
+                result[0] = Math.min(result[0], min[node]);
+            }
+        });
+        return result[0] == Float.POSITIVE_INFINITY ? Float.NaN : result[0];
+    }
+
+    /**
+     * @return Highest total of a day with a record or NaN if there are none
+     */
+    public synchronized float getMax(Specification.NutrientType type, int from, int to)
+    {
+        final float[] max = maxs[type.ordinal()];
+        final float[] result = {Float.NEGATIVE_INFINITY};
+        query(from, to, new Visitor()
+        {
+            @Override
+            public void visit(int node)
+            {
+                result[0] = Math.max(result[0], max[node]);
+            }
+        });
+        return result[0] == Float.NEGATIVE_INFINITY ? Float.NaN : result[0];
+    }
+
+    /**
+     * @return Slope of the least squares line through the totals of the days with a record, as change per day, or NaN
+     * if there are less than two such days
+     */
+    public synchronized double getTrend(Specification.NutrientType type, int from, int to)
+    {
+        final double[] weightedSum = weightedSums[type.ordinal()];
+        // days, x, x^2, x * value
+        final double[] result = new double[4];
+        query(from, to, new Visitor()
+        {
+            @Override
+            public void visit(int node)
+            {
+                result[0] += counts[node];
+                result[1] += xs[node];
+                result[2] += squaredXs[node];
+                result[3] += weightedSum[node];
+            }
+        });
+
+        double n = result[0];
+        double denominator = n * result[2] - result[1] * result[1];
+        if (n < 2 || denominator == 0)
+            return Double.NaN;
+        return (n * result[3] - result[1] * getSum(type, from, to)) / denominator;
+    }
+
+    /**
+     * @return First day with a record or <code>null</code> if there is none
+     */
+    public synchronized Integer getFirstDay()
+    {
+        return summaries.isEmpty() ? null : summaries.firstKey();
+    }
+}
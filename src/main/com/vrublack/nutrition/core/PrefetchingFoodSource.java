@@ -0,0 +1,208 @@
+package com.vrublack.nutrition.core;
+
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts fetching the first few results of every search in the background, since the user almost always picks one
+ * of them. Retrieving a prefetched item then doesn't have to wait for the source. Fetches that are still running when
+ * the next search starts are cancelled.
+ * <p>
+ * Prefetched items are returned by retrieve without asking the source, so this is meant for sources whose retrieve
+ * doesn't update the search history itself.
+ */
+public class PrefetchingFoodSource implements SyncFoodDataSource
+{
+    // design pattern: decorator
+
+    public final static int DEFAULT_PREFETCH_COUNT = 3;
+    public final static long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    private final static int THREADS = 2;
+
+    private final SyncFoodDataSource source;
+
+    private final int prefetchCount;
+
+    private final long ttlMs;
+
+    private final ThreadPoolExecutor executor;
+
+    // by id
+    private final Map<String, Prefetch> prefetches = new HashMap<>();
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+
+    public PrefetchingFoodSource(SyncFoodDataSource source)
+    {
+        this(source, DEFAULT_PREFETCH_COUNT, DEFAULT_TTL_MS);
+    }
+
+    /**
+     * @param source        Source that the items are fetched from
+     * @param prefetchCount How many of the first results of a search are fetched
+     * @param ttlMs         How long a prefetched item is kept
+     */
+    public PrefetchingFoodSource(SyncFoodDataSource source, int prefetchCount, long ttlMs)
+    {
+        this.source = source;
+        this.prefetchCount = prefetchCount;
+        this.ttlMs = ttlMs;
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("Prefetch"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public List<SearchResultItem> search(String searchStr, SearchHistory history, boolean autocomplete)
+    {
+        cancelRunning();
+
+        List<SearchResultItem> results = source.search(searchStr, history, autocomplete);
+        if (results != null)
+        {
+            for (int i = 0; i < Math.min(prefetchCount, results.size()); i++)
+                prefetch(results.get(i).getId());
+        }
+        return results;
+    }
+
+    /**
+     * Cancels the fetches for the previous search and removes expired items
+     */
+    private synchronized void cancelRunning()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Prefetch> it = prefetches.values().iterator();
+        while (it.hasNext())
+        {
+            Prefetch prefetch = it.next();
+            if (!prefetch.future.isDone())
+            {
+                prefetch.future.cancel(true);
+                it.remove();
+            } else if (now - prefetch.startedAt > ttlMs)
+            {
+                it.remove();
+            }
+        }
+        // cancelled fetches that haven't started would otherwise stay in the queue
+        executor.purge();
+    }
+
+    private synchronized void prefetch(final String id)
+    {
+        if (prefetches.containsKey(id))
+            return;
+
+        Future<FoodItem> future = executor.submit(new Callable<FoodItem>()
+        {
+            @Override
+            public FoodItem call() throws Exception
+            {
+                return source.get(id);
+            }
+        });
+        prefetches.put(id, new Prefetch(future, System.currentTimeMillis()));
+        started.incrementAndGet();
+    }
+
+    /**
+     * @return Prefetched item, waiting for it if it is still being fetched, or <code>null</code> if it wasn't
+     * prefetched or couldn't be fetched
+     */
+    private FoodItem getPrefetched(String id)
+    {
+        Prefetch prefetch;
+        synchronized (this)
+        {
+            prefetch = prefetches.get(id);
+            if (prefetch == null)
+                return null;
+            if (System.currentTimeMillis() - prefetch.startedAt > ttlMs)
+            {
+                prefetches.remove(id);
+                return null;
+            }
+        }
+
+        try
+        {
+            return prefetch.future.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e)
+        {
+            // fall back to the source
+        }
+        return null;
+    }
+
+    @Override
+    public FoodItem retrieve(String id, SearchHistory history)
+    {
+        FoodItem item = getPrefetched(id);
+        if (item != null)
+        {
+            hits.incrementAndGet();
+            return item;
+        }
+
+        misses.incrementAndGet();
+        return source.retrieve(id, history);
+    }
+
+    @Override
+    public FoodItem get(String id)
+    {
+        FoodItem item = getPrefetched(id);
+        if (item != null)
+            return item;
+
+        return source.get(id);
+    }
+
+    /**
+     * @return Number of fetches that were started
+     */
+    public int getPrefetches()
+    {
+        return started.get();
+    }
+
+    /**
+     * @return Number of retrieved items that had been prefetched
+     */
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of retrieved items that had to be requested from the source
+     */
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    private static class Prefetch
+    {
+        private final Future<FoodItem> future;
+
+        private final long startedAt;
+
+        Prefetch(Future<FoodItem> future, long startedAt)
+        {
+            this.future = future;
+            this.startedAt = startedAt;
+        }
+    }
+}
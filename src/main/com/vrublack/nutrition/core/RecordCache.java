@@ -0,0 +1,133 @@
+package com.vrublack.nutrition.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used daily records in memory. The cache is bounded by the number of records and by their
+ * estimated size, and the least recently used records are evicted first. Records with unsaved changes are never
+ * evicted, so the bounds can be exceeded temporarily if many of them are dirty.
+ */
+public class RecordCache
+{
+    // a month of browsing back and forth
+    public final static int DEFAULT_MAX_RECORDS = 62;
+    public final static long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // rough estimates; an entry references its food item with all nutrients and measures
+    private final static long RECORD_BYTES = 512;
+    private final static long ENTRY_BYTES = 4096;
+
+    private final int maxRecords;
+
+    private final long maxBytes;
+
+    // by date string, in access order
+    private final LinkedHashMap<String, DailyRecord> records = new LinkedHashMap<>(16, 0.75f, true);
+
+    // estimated size of each record when it was put
+    private final Map<String, Long> sizes = new HashMap<>();
+
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+
+    public RecordCache()
+    {
+        this(DEFAULT_MAX_RECORDS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxRecords Maximum number of clean records
+     * @param maxBytes   Maximum estimated size of all clean records
+     */
+    public RecordCache(int maxRecords, long maxBytes)
+    {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return Record or <code>null</code> if it isn't cached
+     */
+    public synchronized DailyRecord get(String dateString)
+    {
+        DailyRecord record = records.get(dateString);
+        if (record != null)
+            hits++;
+        else
+            misses++;
+        return record;
+    }
+
+    /**
+     * Adds a record or updates its size after it was modified
+     */
+    public synchronized void put(String dateString, DailyRecord record)
+    {
+        Long oldSize = sizes.remove(dateString);
+        if (oldSize != null)
+            bytes -= oldSize;
+
+        long size = estimateSize(record);
+        records.put(dateString, record);
+        sizes.put(dateString, size);
+        bytes += size;
+
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, DailyRecord>> it = records.entrySet().iterator();
+        while ((records.size() > maxRecords || bytes > maxBytes) && it.hasNext())
+        {
+            Map.Entry<String, DailyRecord> entry = it.next();
+            // unsaved changes would be lost
+            if (entry.getValue().isDirty())
+                continue;
+
+            it.remove();
+            bytes -= sizes.remove(entry.getKey());
+            evictions++;
+        }
+    }
+
+    private static long estimateSize(DailyRecord record)
+    {
+        return RECORD_BYTES + ENTRY_BYTES * record.getEntryCount();
+    }
+
+    public synchronized int size()
+    {
+        return records.size();
+    }
+
+    /**
+     * @return Estimated size of all cached records in bytes
+     */
+    public synchronized long getEstimatedBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+}
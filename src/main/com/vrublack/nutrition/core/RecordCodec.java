@@ -0,0 +1,346 @@
+package com.vrublack.nutrition.core;
+
+import com.vrublack.nutrition.core.fatsecret.FatSecretFoodItem;
+import com.vrublack.nutrition.core.usda.USDAFoodItem;
+import com.vrublack.nutrition.core.userdb.UserFoodItem;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary format for daily records. Food entries only contain a reference to their item (data source and id), the
+ * quantity and the nutrients for that quantity, instead of the entire item. When a record is read, the items are
+ * resolved only when needed (see LazyFoodItem). The data source of the built-in item types is determined here, so that
+ * references can be written without a resolver.
+ * <p>
+ * Format: magic number, version byte, date, entries, meal checkpoints. Nutrient types and units are stored by their
+ * ordinal, so new constants have to be appended to the enums. Records that were written with Java serialization can
+ * still be read.
+ */
+public class RecordCodec
+{
+    public final static String SOURCE_USDA = "usda";
+    public final static String SOURCE_USER = "user";
+    public final static String SOURCE_FATSECRET = "fatsecret";
+
+    private final static int MAGIC = 0x54535243;
+    private final static int VERSION = 1;
+
+    private final static int FOOD_ENTRY = 0;
+    private final static int DIRECT_ENTRY = 1;
+
+    // first bytes of a Java serialization stream
+    private final static int LEGACY_MAGIC = 0xACED;
+
+    private final FoodItemResolver resolver;
+
+
+    /**
+     * @param resolver Finds the items of food entries or <code>null</code> if only the stored values should be used
+     */
+    public RecordCodec(FoodItemResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return Name of the data source that the item is from or <code>null</code> if unknown
+     */
+    public static String getSource(FoodItem item)
+    {
+        if (item instanceof LazyFoodItem)
+            return ((LazyFoodItem) item).getSource();
+        else if (item instanceof USDAFoodItem)
+            return SOURCE_USDA;
+        else if (item instanceof UserFoodItem)
+            return SOURCE_USER;
+        else if (item instanceof FatSecretFoodItem)
+            return SOURCE_FATSECRET;
+        else
+            return null;
+    }
+
+    /**
+     * @return Whether the data source of every food entry is known, so that encoding the record doesn't lose the
+     * references to the items
+     */
+    public boolean canEncode(DailyRecord record)
+    {
+        for (Pair<Specification, SimpleCalendar> entry : record.asList())
+        {
+            if (entry.first instanceof FoodSpecification
+                    && findSource(((FoodSpecification) entry.first).getFoodItem()) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Source of a built-in item type, otherwise the one of the resolver
+     */
+    private String findSource(FoodItem item)
+    {
+        String source = getSource(item);
+        if (source == null && resolver != null)
+            source = resolver.getSource(item);
+        return source;
+    }
+
+    /**
+     * @return Whether the data was written with Java serialization and should be converted
+     */
+    public static boolean isLegacy(byte[] data)
+    {
+        return data.length >= 2 && ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == LEGACY_MAGIC;
+    }
+
+    public byte[] encode(DailyRecord record) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            write(record, out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param data Record in this format or serialized with Java serialization
+     */
+    public DailyRecord decode(byte[] data) throws IOException
+    {
+        if (isLegacy(data))
+        {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)))
+            {
+                return (DailyRecord) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e)
+            {
+                throw new IOException("Invalid serialized record", e);
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data)))
+        {
+            return read(in);
+        }
+    }
+
+    public void write(DailyRecord record, DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeCalendar(record.getDate(), out);
+
+        List<Pair<Specification, SimpleCalendar>> entries = record.asList();
+        out.writeInt(entries.size());
+        for (Pair<Specification, SimpleCalendar> entry : entries)
+        {
+            writeCalendar(entry.second, out);
+            if (entry.first instanceof FoodSpecification)
+            {
+                out.writeByte(FOOD_ENTRY);
+                writeFoodSpecification((FoodSpecification) entry.first, out);
+            } else if (entry.first instanceof DirectSpecification)
+            {
+                out.writeByte(DIRECT_ENTRY);
+                writeDirectSpecification((DirectSpecification) entry.first, out);
+            } else
+            {
+                throw new IOException("Unknown specification " + entry.first.getClass().getName());
+            }
+        }
+
+        Map<Integer, String> mealCheckpoints = record.getMealCheckpoints();
+        if (mealCheckpoints == null)
+        {
+            out.writeInt(0);
+        } else
+        {
+            out.writeInt(mealCheckpoints.size());
+            for (Map.Entry<Integer, String> checkpoint : mealCheckpoints.entrySet())
+            {
+                out.writeInt(checkpoint.getKey());
+                writeString(checkpoint.getValue(), out);
+            }
+        }
+    }
+
+    public DailyRecord read(DataInputStream in) throws IOException
+    {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a record");
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported record version " + version);
+
+        DailyRecord record = new DailyRecord(readCalendar(in));
+
+        int entryCount = in.readInt();
+        for (int i = 0; i < entryCount; i++)
+        {
+            SimpleCalendar added = readCalendar(in);
+            int type = in.readUnsignedByte();
+            if (type == FOOD_ENTRY)
+                record.add(readFoodSpecification(in), added);
+            else if (type == DIRECT_ENTRY)
+                record.add(readDirectSpecification(in), added);
+            else
+                throw new IOException("Unknown entry type " + type);
+        }
+
+        int checkpointCount = in.readInt();
+        for (int i = 0; i < checkpointCount; i++)
+        {
+            int index = in.readInt();
+            record.addMealCheckpoint(index, readString(in));
+        }
+
+        record.markClean();
+        return record;
+    }
+
+    private void writeFoodSpecification(FoodSpecification specification, DataOutputStream out) throws IOException
+    {
+        FoodItem item = specification.getFoodItem();
+        FoodQuantity quantity = specification.getQuantity();
+
+        writeString(specification.getId(), out);
+        writeString(findSource(item), out);
+        writeString(item.getId(), out);
+        writeString(item.getDescription(), out);
+        out.writeBoolean(specification.isMicroNutrientsOnly());
+
+        out.writeFloat(quantity.getQuantifier());
+        writeString(quantity.getSimpleUnit(), out);
+        writeString(quantity.getDetailedUnit(), out);
+
+        // values of the item itself, since the specification leaves out macros if microNutrientsOnly is set
+        out.writeFloat(item.getCaloriesPerQuantity(quantity));
+        Specification.NutrientType[] types = Specification.NutrientType.values();
+        NutrientQuantity[] nutrients = new NutrientQuantity[types.length];
+        for (Specification.NutrientType type : types)
+            nutrients[type.ordinal()] = item.getNutrientPerQuantity(type, quantity);
+        writeNutrients(nutrients, out);
+    }
+
+    private FoodSpecification readFoodSpecification(DataInputStream in) throws IOException
+    {
+        String id = readString(in);
+        String source = readString(in);
+        String foodId = readString(in);
+        String description = readString(in);
+        boolean microNutrientsOnly = in.readBoolean();
+
+        FoodQuantity quantity = new FoodQuantity(in.readFloat(), readString(in), readString(in));
+
+        float calories = in.readFloat();
+        NutrientQuantity[] nutrients = readNutrients(in);
+
+        FoodItem item = new LazyFoodItem(source, foodId, description, quantity, calories, nutrients, resolver);
+        return new FoodSpecification(item, quantity, id, microNutrientsOnly);
+    }
+
+    private void writeDirectSpecification(DirectSpecification specification, DataOutputStream out) throws IOException
+    {
+        writeString(specification.getId(), out);
+        writeString(specification.getDescriptionOrNull(), out);
+        out.writeFloat(specification.isCaloriesSpecified() ? specification.getCalories() : -1);
+
+        Specification.NutrientType[] types = Specification.NutrientType.values();
+        NutrientQuantity[] nutrients = new NutrientQuantity[types.length];
+        for (Specification.NutrientType type : types)
+            nutrients[type.ordinal()] = specification.getNutrient(type);
+        writeNutrients(nutrients, out);
+    }
+
+    private DirectSpecification readDirectSpecification(DataInputStream in) throws IOException
+    {
+        DirectSpecification specification = new DirectSpecification(readString(in));
+        specification.setDescription(readString(in));
+        float calories = in.readFloat();
+        if (calories != -1)
+            specification.setCalories(calories);
+
+        NutrientQuantity[] nutrients = readNutrients(in);
+        for (Specification.NutrientType type : Specification.NutrientType.values())
+            if (nutrients[type.ordinal()] != null)
+                specification.putNutrient(type, nutrients[type.ordinal()]);
+        return specification;
+    }
+
+    /**
+     * Only the specified nutrients are written: their number, then type, unit and amount of each
+     */
+    private static void writeNutrients(NutrientQuantity[] nutrients, DataOutputStream out) throws IOException
+    {
+        int count = 0;
+        for (NutrientQuantity nutrient : nutrients)
+            if (nutrient != null)
+                count++;
+
+        out.writeByte(count);
+        for (int i = 0; i < nutrients.length; i++)
+        {
+            if (nutrients[i] == null)
+                continue;
+            out.writeByte(i);
+            out.writeByte(nutrients[i].getUnit().ordinal());
+            out.writeFloat(nutrients[i].getAmountInUnit());
+        }
+    }
+
+    private static NutrientQuantity[] readNutrients(DataInputStream in) throws IOException
+    {
+        Specification.NutrientType[] types = Specification.NutrientType.values();
+        NutrientQuantity.Unit[] units = NutrientQuantity.Unit.values();
+        NutrientQuantity[] nutrients = new NutrientQuantity[types.length];
+
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++)
+        {
+            int type = in.readUnsignedByte();
+            int unit = in.readUnsignedByte();
+            float amount = in.readFloat();
+            if (type >= types.length || unit >= units.length)
+                throw new IOException("Unknown nutrient " + type + " or unit " + unit);
+            nutrients[type] = new NutrientQuantity(amount, units[unit]);
+        }
+        return nutrients;
+    }
+
+    private static void writeCalendar(SimpleCalendar calendar, DataOutputStream out) throws IOException
+    {
+        out.writeBoolean(calendar != null);
+        if (calendar != null)
+        {
+            out.writeInt(calendar.toEpochDay());
+            out.writeByte(calendar.getHour());
+            out.writeByte(calendar.getMinute());
+        }
+    }
+
+    private static SimpleCalendar readCalendar(DataInputStream in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+
+        SimpleCalendar calendar = SimpleCalendar.fromEpochDay(in.readInt());
+        calendar.setHour(in.readUnsignedByte());
+        calendar.setMinute(in.readUnsignedByte());
+        return calendar;
+    }
+
+    private static void writeString(String s, DataOutputStream out) throws IOException
+    {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
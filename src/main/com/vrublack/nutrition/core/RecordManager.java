@@ -1,6 +1,7 @@
 package com.vrublack.nutrition.core;
 
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -8,39 +9,214 @@ public abstract class RecordManager
 {
     private static final String internalDateFormat = "yyyy-MM-dd";
 
-    private List<String> availableRecords;
+    // short enough that little is lost if the application is killed, long enough for a burst of edits
+    public static final long DEFAULT_WRITE_DELAY_MS = 500;
 
-    private Map<String, DailyRecord> loadedRecords;
+    // records that forEachRecord() loads at once
+    private static final int VISIT_CHUNK_DAYS = 32;
+
+    /**
+     * Receives the records of forEachRecord()
+     */
+    public interface RecordVisitor
+    {
+        void visit(DailyRecord record) throws IOException;
+    }
+
+    // date string of every available record by epoch day
+    private NavigableMap<Integer, String> availableRecords;
+
+    private final RecordCache loadedRecords;
+
+    // summary of every available record by epoch day, loaded on first use
+    private Map<Integer, DailySummary> summaries;
+
+    // built from all summaries on first use
+    private NutrientAggregator aggregator;
+
+    // writes saved records in the background, or null if they are written by saveRecord()
+    private volatile RecordSaver saver;
+
+    // whether flush() is called when the application exits
+    private boolean shutdownHookAdded;
 
     public RecordManager()
     {
-        loadedRecords = new HashMap<>();
+        this(new RecordCache());
+    }
+
+    /**
+     * @param cache Keeps loaded records in memory
+     */
+    public RecordManager(RecordCache cache)
+    {
+        loadedRecords = cache;
     }
 
     public abstract List<String> loadFileNames();
 
     public abstract DailyRecord loadRecord(String dateString);
 
-    public abstract void saveRecord(DailyRecord record);
+    /**
+     * Loads several records at once. Implementations can override this if that is cheaper than loading them one by
+     * one.
+     *
+     * @return Loaded records by date string; records that couldn't be loaded are missing
+     */
+    protected Map<String, DailyRecord> loadRecords(List<String> dateStrings)
+    {
+        Map<String, DailyRecord> records = new HashMap<>();
+        for (String dateString : dateStrings)
+        {
+            DailyRecord record = loadRecord(dateString);
+            if (record != null)
+                records.put(dateString, record);
+        }
+        return records;
+    }
 
     /**
-     * @return Record for today. Creates new one if it doesn't exist.
+     * Writes the record to the storage
      */
-    public DailyRecord getRecordForToday(SimpleCalendar today)
+    protected abstract void storeRecord(DailyRecord record);
+
+    /**
+     * @return Summaries that were stored with storeSummary() by epoch day
+     */
+    protected Map<Integer, DailySummary> loadSummaries()
+    {
+        return new HashMap<>();
+    }
+
+    /**
+     * Writes the summary of a record that was saved. By default, summaries aren't persisted and are computed from
+     * the records again after a restart.
+     */
+    protected void storeSummary(DailySummary summary)
+    {
+    }
+
+    /**
+     * Makes saveRecord() return right away and store the record in the background. Saves within the delay are written
+     * together, and pending saves are written when the application exits.
+     *
+     * @param delayMs Time from the first save until the records are written
+     */
+    public synchronized void setWriteDelay(long delayMs)
+    {
+        if (saver != null)
+            saver.shutdown();
+        saver = delayMs > 0 ? new RecordSaver(this, delayMs) : null;
+
+        if (saver != null && !shutdownHookAdded)
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            });
+            shutdownHookAdded = true;
+        }
+    }
+
+    /**
+     * Writes all records that were saved but haven't been stored yet
+     */
+    public void flush()
+    {
+        RecordSaver saver = this.saver;
+        if (saver != null)
+            saver.flush();
+    }
+
+    /**
+     * Stores the record. Until then, it isn't evicted from the cache.
+     */
+    public void saveRecord(DailyRecord record)
+    {
+        // loaded before the summary file might be written in the background
+        Map<Integer, DailySummary> summaries = getSummaries();
+        DailySummary summary = DailySummary.of(record);
+
+        RecordSaver saver = this.saver;
+        if (saver != null)
+        {
+            saver.save(record, summary);
+        } else
+        {
+            storeRecord(record);
+            record.markClean();
+            storeSummary(summary);
+        }
+
+        summaries.put(summary.getEpochDay(), summary);
+        if (aggregator != null)
+            aggregator.put(summary);
+
+        String dateString = record.getDate().format();
+        getAvailableRecords().put(record.getDate().toEpochDay(), dateString);
+        loadedRecords.put(dateString, record);
+    }
+
+    /**
+     * @return Index of the available records, built on first use
+     */
+    private NavigableMap<Integer, String> getAvailableRecords()
     {
         if (availableRecords == null)
-            availableRecords = loadFileNames();
+        {
+            availableRecords = new TreeMap<>();
+            for (String fileName : loadFileNames())
+            {
+                SimpleCalendar date = parseDateString(fileName);
+                if (date != null)
+                    availableRecords.put(date.toEpochDay(), fileName);
+            }
+        }
+        return availableRecords;
+    }
+
+    private Map<Integer, DailySummary> getSummaries()
+    {
+        if (summaries == null)
+            summaries = new HashMap<>(loadSummaries());
+        return summaries;
+    }
+
+    /**
+     * @param dateString Date according to <code>internalDateFormat</code>
+     * @return Date or <code>null</code> if the string isn't in that format
+     */
+    protected static SimpleCalendar parseDateString(String dateString)
+    {
+        String[] parts = dateString.split("-");
+        if (parts.length != 3)
+            return null;
 
-        String fileName = getDateString(getCalendar(today));
+        try
+        {
+            return new SimpleCalendar(Integer.parseInt(parts[2]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[0]), 0, 0);
+        } catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
 
+    /**
+     * @return Record for today. Creates new one if it doesn't exist.
+     */
+    public DailyRecord getRecordForToday(SimpleCalendar today)
+    {
         DailyRecord record = getRecordForDay(today);
 
         if (record == null)
         {
             // create new record for today
             record = new DailyRecord(today);
-            availableRecords.add(fileName);
-            loadedRecords.put(fileName, record);
             saveRecord(record);
             return record;
         }
@@ -54,7 +230,7 @@ public abstract class RecordManager
      */
     public DailyRecord getRecordForDay(Calendar calendar)
     {
-        return getRecordForDay(getDateString(calendar));
+        return getRecordForDay(getSimpleCalendar(calendar).toEpochDay());
     }
 
     /**
@@ -63,33 +239,30 @@ public abstract class RecordManager
      */
     public DailyRecord getRecordForDay(SimpleCalendar calendar)
     {
-        return getRecordForDay(getDateString(getCalendar(calendar)));
+        return getRecordForDay(calendar.toEpochDay());
     }
 
     /**
-     * @param dateString String version of requested date according to <code>internalDateFormat</code>
+     * @param epochDay Requested date as days since 1970-01-01
      * @return Record for that day or <code>null</code> if it doesn't exist
      */
-    private DailyRecord getRecordForDay(String dateString)
+    private DailyRecord getRecordForDay(int epochDay)
     {
-        if (availableRecords == null)
-            availableRecords = loadFileNames();
-
-        if (!availableRecords.contains(dateString))
-        {
+        String dateString = getAvailableRecords().get(epochDay);
+        if (dateString == null)
             return null;
-        } else
+
+        DailyRecord record = loadedRecords.get(dateString);
+        if (record == null)
         {
-            if (loadedRecords.get(dateString) != null)
-            {
-                return loadedRecords.get(dateString);
-            } else
+            record = loadRecord(dateString);
+            if (record != null)
             {
-                DailyRecord record = loadRecord(dateString);
+                record.markClean();
                 loadedRecords.put(dateString, record);
-                return record;
             }
         }
+        return record;
     }
 
     /**
@@ -99,21 +272,7 @@ public abstract class RecordManager
      */
     public DailyRecord getPrevious(Calendar calendar)
     {
-        if (availableRecords == null)
-            availableRecords = loadFileNames();
-
-        Collections.sort(availableRecords);
-
-        String fileName = getDateString(calendar);
-        for (int i = availableRecords.size() - 1; i >= 0; i--)
-        {
-            if (availableRecords.get(i).compareTo(fileName) < 0)
-            {
-                return getRecordForDay(availableRecords.get(i));
-            }
-        }
-
-        return null;
+        return getPrevious(getSimpleCalendar(calendar));
     }
 
     /**
@@ -123,7 +282,8 @@ public abstract class RecordManager
      */
     public DailyRecord getPrevious(SimpleCalendar calendar)
     {
-        return getPrevious(getCalendar(calendar));
+        Integer previous = getAvailableRecords().lowerKey(calendar.toEpochDay());
+        return previous != null ? getRecordForDay(previous) : null;
     }
 
     /**
@@ -133,50 +293,175 @@ public abstract class RecordManager
      */
     public DailyRecord getNext(Calendar calendar)
     {
-        if (availableRecords == null)
-            availableRecords = loadFileNames();
+        return getNext(getSimpleCalendar(calendar));
+    }
+
+    /**
+     * @param n Number of days
+     * @return Records of last n days (days that have no daily record are also counted), excluding the current day
+     */
+    public DailyRecord[] getLastDays(int n)
+    {
+        int today = getSimpleCalendar(new GregorianCalendar()).toEpochDay();
+
+        List<DailyRecord> lastRecords = loadRange(today - n, today);
+        Collections.reverse(lastRecords);
+
+        return lastRecords.toArray(new DailyRecord[lastRecords.size()]);
+    }
+
+    /**
+     * Loads all records of a range of days at once, which is faster than loading them one by one if the
+     * implementation loads several records in parallel or with a single read. Loaded records are cached.
+     *
+     * @param from First day of the range
+     * @param to   Day after the range
+     * @return Records of the range in order of their date, without days that have no record
+     */
+    public List<DailyRecord> loadRange(SimpleCalendar from, SimpleCalendar to)
+    {
+        return loadRange(from.toEpochDay(), to.toEpochDay());
+    }
+
+    private List<DailyRecord> loadRange(int from, int to)
+    {
+        if (from >= to)
+            return new ArrayList<>();
+
+        NavigableMap<Integer, String> range = getAvailableRecords().subMap(from, true, to, false);
 
-        Collections.sort(availableRecords);
+        List<String> missing = new ArrayList<>();
+        for (String dateString : range.values())
+            if (loadedRecords.get(dateString) == null)
+                missing.add(dateString);
+        Map<String, DailyRecord> loaded = loadRecords(missing);
+        for (Map.Entry<String, DailyRecord> entry : loaded.entrySet())
+        {
+            entry.getValue().markClean();
+            loadedRecords.put(entry.getKey(), entry.getValue());
+        }
 
-        String fileName = getDateString(calendar);
-        for (int i = 0; i < availableRecords.size(); i++)
+        List<DailyRecord> records = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : range.entrySet())
         {
-            if (availableRecords.get(i).compareTo(fileName) > 0)
+            // the cache may already have evicted records of a long range
+            DailyRecord r = loaded.get(entry.getValue());
+            if (r == null)
+                r = getRecordForDay(entry.getKey());
+            if (r != null)
+                records.add(r);
+        }
+
+        return records;
+    }
+
+    /**
+     * Visits all records in order of their date. They are loaded a few at a time and aren't cached, so that memory
+     * doesn't depend on the number of records. Records that are in the cache are visited in their current state, even
+     * if it hasn't been written yet.
+     *
+     * @throws IOException If the visitor throws it, which stops the iteration
+     */
+    public void forEachRecord(RecordVisitor visitor) throws IOException
+    {
+        NavigableMap<Integer, String> available = getAvailableRecords();
+        Integer day = available.isEmpty() ? null : available.firstKey();
+        while (day != null)
+        {
+            List<Integer> days = new ArrayList<>();
+            Map<Integer, DailyRecord> cached = new HashMap<>();
+            List<String> missing = new ArrayList<>();
+            for (; day != null && days.size() < VISIT_CHUNK_DAYS; day = available.higherKey(day))
             {
-                return getRecordForDay(availableRecords.get(i));
+                days.add(day);
+                DailyRecord record = loadedRecords.get(available.get(day));
+                if (record != null)
+                    cached.put(day, record);
+                else
+                    missing.add(available.get(day));
             }
-        }
 
-        return null;
+            Map<String, DailyRecord> loaded = loadRecords(missing);
+            for (int d : days)
+            {
+                DailyRecord record = cached.get(d);
+                if (record == null)
+                    record = loaded.get(available.get(d));
+                if (record != null)
+                    visitor.visit(record);
+            }
+        }
     }
 
     /**
+     * Like getLastDays(), but only the summaries are read. Records are only loaded if they were saved before
+     * summaries were stored.
+     *
      * @param n Number of days
-     * @return Records of last n days (days that have no daily record are also counted), excluding the current day
+     * @return Summaries of the records of the last n days, excluding the current day, latest first
      */
-    public DailyRecord[] getLastDays(int n)
+    public DailySummary[] getLastDaySummaries(int n)
     {
-        Calendar nDaysAgo = new GregorianCalendar();
-        nDaysAgo.add(Calendar.DAY_OF_MONTH, -n);
-        String nDaysAgoFormat = getDateString(nDaysAgo);
+        int today = getSimpleCalendar(new GregorianCalendar()).toEpochDay();
 
-        Collections.sort(availableRecords);
+        NavigableMap<Integer, String> range = getAvailableRecords().subMap(today - n, true, today, false);
+        Map<Integer, DailySummary> summaries = getSummaries(range);
 
-        String todayStr = getDateString(new GregorianCalendar());
+        List<DailySummary> lastSummaries = new ArrayList<>();
+        for (int day : range.descendingKeySet())
+        {
+            DailySummary summary = summaries.get(day);
+            if (summary != null)
+                lastSummaries.add(summary);
+        }
 
-        List<DailyRecord> lastRecords = new ArrayList<>();
-        for (int i = availableRecords.size() - 1;
-             i >= 0 && availableRecords.get(i).compareTo(nDaysAgoFormat) >= 0; i--)
+        return lastSummaries.toArray(new DailySummary[lastSummaries.size()]);
+    }
+
+    /**
+     * @param range Available records by epoch day
+     * @return Summaries, which have been computed for those records that don't have one yet
+     */
+    private Map<Integer, DailySummary> getSummaries(Map<Integer, String> range)
+    {
+        Map<Integer, DailySummary> summaries = getSummaries();
+
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : range.entrySet())
+            if (!summaries.containsKey(entry.getKey()))
+                missing.add(entry.getValue());
+        if (!missing.isEmpty())
         {
-            if (!availableRecords.get(i).equals(todayStr))
+            for (DailyRecord record : loadRecords(missing).values())
             {
-                DailyRecord r = getRecordForDay(availableRecords.get(i));
-                if (r != null)
-                    lastRecords.add(r);
+                DailySummary summary = DailySummary.of(record);
+                summaries.put(summary.getEpochDay(), summary);
+                storeSummary(summary);
             }
         }
 
-        return lastRecords.toArray(new DailyRecord[lastRecords.size()]);
+        return summaries;
+    }
+
+    /**
+     * @return Aggregates over the summaries of all records, which are kept up to date when records are saved
+     */
+    public NutrientAggregator getAggregator()
+    {
+        if (aggregator == null)
+        {
+            NutrientAggregator newAggregator = new NutrientAggregator();
+            Map<Integer, String> available = getAvailableRecords();
+            Map<Integer, DailySummary> summaries = getSummaries(available);
+            for (int day : available.keySet())
+            {
+                DailySummary summary = summaries.get(day);
+                if (summary != null)
+                    newAggregator.put(summary);
+            }
+            aggregator = newAggregator;
+        }
+        return aggregator;
     }
 
     /**
@@ -186,7 +471,8 @@ public abstract class RecordManager
      */
     public DailyRecord getNext(SimpleCalendar calendar)
     {
-        return getNext(getCalendar(calendar));
+        Integer next = getAvailableRecords().higherKey(calendar.toEpochDay());
+        return next != null ? getRecordForDay(next) : null;
     }
 
 
@@ -219,14 +505,19 @@ public abstract class RecordManager
         return getSimpleCalendar(new GregorianCalendar()).equals(simpleCalendar);
     }
 
+    /**
+     * @return Cache of the loaded records, e.g. for its hit and miss counts
+     */
+    public RecordCache getCache()
+    {
+        return loadedRecords;
+    }
+
     /**
      * @return How many records are available
      */
     public int size()
     {
-        if (availableRecords == null)
-            availableRecords = loadFileNames();
-
-        return availableRecords.size();
+        return getAvailableRecords().size();
     }
 }
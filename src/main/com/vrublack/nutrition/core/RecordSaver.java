@@ -0,0 +1,158 @@
+package com.vrublack.nutrition.core;
+
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores saved records in the background. The first save of a record starts a short delay, and further saves of any
+ * record until then are written together with it, so that a burst of edits only costs one write per record. Each
+ * record is written as a copy of its state at the last save, so it can be edited while it is written.
+ */
+class RecordSaver
+{
+    private static class Pending
+    {
+        final DailyRecord record;
+        final DailyRecord copy;
+        final DailySummary summary;
+
+        Pending(DailyRecord record, DailyRecord copy, DailySummary summary)
+        {
+            this.record = record;
+            this.copy = copy;
+            this.summary = summary;
+        }
+    }
+
+    private final RecordManager manager;
+
+    private final long delayMs;
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Record saver"));
+
+    // latest saved state by date string
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    // set by shutdown(), after which saves are written right away
+    private boolean shutDown;
+
+    // held while writing, so that the writes of the scheduled flush and an explicit one don't interleave
+    private final Object writeLock = new Object();
+
+    private long saves;
+    private long writes;
+
+
+    RecordSaver(RecordManager manager, long delayMs)
+    {
+        this.manager = manager;
+        this.delayMs = delayMs;
+    }
+
+    /**
+     * @param summary Summary of the current state of the record
+     */
+    void save(DailyRecord record, DailySummary summary)
+    {
+        synchronized (this)
+        {
+            DailyRecord copy = new DailyRecord.Memento(record).getDailyRecord();
+            pending.put(record.getDate().format(), new Pending(record, copy, summary));
+            // under the lock that flush() checks pending with, so that a write that finishes now can't mark it clean
+            record.markDirty();
+            saves++;
+
+            if (!shutDown)
+            {
+                if (scheduledFlush == null)
+                {
+                    scheduledFlush = executor.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            flush();
+                        }
+                    }, delayMs, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        // the write delay was changed while this was called
+        flush();
+    }
+
+    /**
+     * Writes all pending saves and stops the background thread
+     */
+    void shutdown()
+    {
+        synchronized (this)
+        {
+            shutDown = true;
+        }
+        flush();
+        executor.shutdown();
+    }
+
+    /**
+     * Writes all pending saves and waits until they are written
+     */
+    void flush()
+    {
+        synchronized (writeLock)
+        {
+            List<Pending> batch;
+            synchronized (this)
+            {
+                batch = new ArrayList<>(pending.values());
+                pending.clear();
+                if (scheduledFlush != null)
+                {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+            }
+
+            for (Pending p : batch)
+            {
+                manager.storeRecord(p.copy);
+                manager.storeSummary(p.summary);
+                synchronized (this)
+                {
+                    writes++;
+                    // unless it was saved again in the meantime, the record can be evicted from the cache now
+                    if (!pending.containsKey(p.record.getDate().format()))
+                        p.record.markClean();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of calls to save()
+     */
+    synchronized long getSaves()
+    {
+        return saves;
+    }
+
+    /**
+     * @return Number of records that were written
+     */
+    synchronized long getWrites()
+    {
+        return writes;
+    }
+}
@@ -0,0 +1,344 @@
+package com.vrublack.nutrition.core;
+
+import com.vrublack.nutrition.core.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Protects callers from a remote source that is slow or down:
+ * <ul>
+ * <li>Searches and gets that take longer than 95% of the previous calls are sent a second time, and whichever answer
+ * arrives first is used.</li>
+ * <li>After several failures in a row the circuit opens and calls fail immediately, so that callers can fall back to
+ * local sources. A fixed search is sent in the background until it succeeds, which closes the circuit again.</li>
+ * </ul>
+ * A call fails if it throws or if a search returns <code>null</code>, which is how sources report errors (including
+ * timeouts). An item that isn't found is a normal answer, since composite sources ask every source for every id.
+ * Retrieve isn't sent twice, since it may update the search history.
+ */
+public class ResilientFoodSource implements SyncFoodDataSource
+{
+    // design pattern: decorator
+
+    public enum State
+    {
+        CLOSED, OPEN
+    }
+
+    public final static int DEFAULT_FAILURE_THRESHOLD = 3;
+    public final static long DEFAULT_PROBE_INTERVAL_MS = 30000;
+
+    // sent while the circuit is open to find out whether the source is available again
+    private final static String PROBE_QUERY = "apple";
+
+    // latencies of the most recent calls
+    private final static int LATENCY_SAMPLES = 200;
+
+    // with fewer latencies than this, the percentile isn't meaningful and calls aren't hedged
+    private final static int MIN_SAMPLES_FOR_HEDGING = 20;
+
+    private final static ExecutorService executor = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("Resilient food source"));
+
+    private final static ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("Food source probe"));
+
+    private final SyncFoodDataSource source;
+
+    private final int failureThreshold;
+
+    private final long probeIntervalMs;
+
+    // ring buffer in ms
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private int nextLatency;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+
+    private final AtomicInteger hedges = new AtomicInteger();
+    private final AtomicInteger hedgeWins = new AtomicInteger();
+    private final AtomicInteger failFasts = new AtomicInteger();
+    private final AtomicInteger openings = new AtomicInteger();
+
+
+    public ResilientFoodSource(SyncFoodDataSource source)
+    {
+        this(source, DEFAULT_FAILURE_THRESHOLD, DEFAULT_PROBE_INTERVAL_MS);
+    }
+
+    /**
+     * @param source           Remote source
+     * @param failureThreshold Number of failures in a row after which the circuit opens
+     * @param probeIntervalMs  How often the source is tried while the circuit is open
+     */
+    public ResilientFoodSource(SyncFoodDataSource source, int failureThreshold, long probeIntervalMs)
+    {
+        this.source = source;
+        this.failureThreshold = failureThreshold;
+        this.probeIntervalMs = probeIntervalMs;
+    }
+
+    @Override
+    public List<SearchResultItem> search(final String searchStr, final SearchHistory history,
+                                         final boolean autocomplete)
+    {
+        return call(new Callable<List<SearchResultItem>>()
+        {
+            @Override
+            public List<SearchResultItem> call() throws Exception
+            {
+                return source.search(searchStr, history, autocomplete);
+            }
+        }, true, true);
+    }
+
+    @Override
+    public FoodItem retrieve(final String id, final SearchHistory history)
+    {
+        return call(new Callable<FoodItem>()
+        {
+            @Override
+            public FoodItem call() throws Exception
+            {
+                return source.retrieve(id, history);
+            }
+        }, false, false);
+    }
+
+    @Override
+    public FoodItem get(final String id)
+    {
+        return call(new Callable<FoodItem>()
+        {
+            @Override
+            public FoodItem call() throws Exception
+            {
+                return source.get(id);
+            }
+        }, true, false);
+    }
+
+    /**
+     * @param hedge         Whether the operation may run twice
+     * @param nullIsFailure Whether <code>null</code> means that the operation failed, rather than that nothing was
+     *                      found
+     * @return Result or <code>null</code> if the operation failed or the circuit is open
+     */
+    private <T> T call(Callable<T> operation, boolean hedge, boolean nullIsFailure)
+    {
+        synchronized (this)
+        {
+            if (state == State.OPEN)
+            {
+                failFasts.incrementAndGet();
+                return null;
+            }
+        }
+
+        T result;
+        try
+        {
+            result = hedge ? callHedged(operation, nullIsFailure) : callTimed(operation);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e)
+        {
+            onFailure();
+            return null;
+        }
+
+        if (result == null && nullIsFailure)
+            onFailure();
+        else
+            onSuccess();
+        return result;
+    }
+
+    private <T> T callTimed(Callable<T> operation) throws Exception
+    {
+        long start = System.nanoTime();
+        T result = operation.call();
+        if (result != null)
+            recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    /**
+     * @throws ExecutionException If every request threw
+     */
+    private <T> T callHedged(final Callable<T> operation, boolean nullIsFailure)
+            throws InterruptedException, ExecutionException
+    {
+        Callable<T> timed = new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                return callTimed(operation);
+            }
+        };
+
+        long hedgeDelayMs = getLatencyPercentileMs(95);
+        CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<T>> futures = new ArrayList<>(2);
+        futures.add(completionService.submit(timed));
+        try
+        {
+            Future<T> done = null;
+            if (hedgeDelayMs >= 0)
+            {
+                done = completionService.poll(hedgeDelayMs, TimeUnit.MILLISECONDS);
+                if (done == null)
+                {
+                    hedges.incrementAndGet();
+                    futures.add(completionService.submit(timed));
+                }
+            }
+
+            int running = futures.size();
+            while (true)
+            {
+                if (done == null)
+                    done = completionService.take();
+                running--;
+
+                try
+                {
+                    T result = done.get();
+                    if (result != null || !nullIsFailure || running == 0)
+                    {
+                        if (result != null && futures.size() == 2 && done == futures.get(1))
+                            hedgeWins.incrementAndGet();
+                        return result;
+                    }
+                } catch (ExecutionException e)
+                {
+                    if (running == 0)
+                        throw e;
+                }
+                // the other request may still succeed
+                done = null;
+            }
+        } finally
+        {
+            for (Future<T> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    private synchronized void recordLatency(long ms)
+    {
+        latencies[nextLatency] = ms;
+        nextLatency = (nextLatency + 1) % latencies.length;
+        latencyCount = Math.min(latencyCount + 1, latencies.length);
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Latency in ms that the given percentage of the recent successful calls didn't exceed, or -1 if there
+     * aren't enough calls yet
+     */
+    public synchronized long getLatencyPercentileMs(double percentile)
+    {
+        if (latencyCount < MIN_SAMPLES_FOR_HEDGING)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private synchronized void onSuccess()
+    {
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void onFailure()
+    {
+        consecutiveFailures++;
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold)
+        {
+            state = State.OPEN;
+            openings.incrementAndGet();
+            scheduleProbe();
+        }
+    }
+
+    private void scheduleProbe()
+    {
+        prober.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // a health check rather than the call that failed, since that might fail for other reasons
+                List<SearchResultItem> result;
+                try
+                {
+                    result = source.search(PROBE_QUERY, null, false);
+                } catch (Exception e)
+                {
+                    result = null;
+                }
+
+                synchronized (ResilientFoodSource.this)
+                {
+                    if (result != null)
+                    {
+                        state = State.CLOSED;
+                        consecutiveFailures = 0;
+                    } else
+                    {
+                        scheduleProbe();
+                    }
+                }
+            }
+        }, probeIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return Number of requests that were sent a second time because the first one was slow
+     */
+    public int getHedges()
+    {
+        return hedges.get();
+    }
+
+    /**
+     * @return Number of second requests that answered before the first one
+     */
+    public int getHedgeWins()
+    {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return Number of calls that failed immediately because the circuit was open
+     */
+    public int getFailFasts()
+    {
+        return failFasts.get();
+    }
+
+    /**
+     * @return How often the circuit opened
+     */
+    public int getOpenings()
+    {
+        return openings.get();
+    }
+}
@@ -1,27 +1,65 @@
 package com.vrublack.nutrition.core;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 
+/**
+ * Remembers which items were selected for a search string. Only the most frequent ids are kept (Space-Saving
+ * algorithm), so the memory per search string is bounded, and older selections count less than recent ones. The
+ * ids are kept sorted by weight, so the first and second most common ids are available immediately.
+ */
 public class SearchStringStat implements Serializable
 {
     private static final long serialVersionUID = 10;
 
+    // number of ids that are tracked
+    public final static int CAPACITY = 8;
+
+    // after this time, a selection counts half as much as a new one
+    public final static long HALF_LIFE_MS = 180L * 24 * 60 * 60 * 1000;
+
+    // weights are relative to the landmark and rescaled before they can overflow
+    private final static double MAX_LANDMARK_HALF_LIVES = 64;
+
+    // the old format only had searchString and ndbNoFrequencyMapping
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("searchString", String.class),
+            new ObjectStreamField("ndbNoFrequencyMapping", ArrayList.class),
+            new ObjectStreamField("ids", String[].class),
+            new ObjectStreamField("weights", double[].class),
+            new ObjectStreamField("size", int.class),
+            new ObjectStreamField("landmarkMs", long.class)
+    };
+
     private String searchString;
 
-    // 1st comp: NDB number, 2nd comp: how often that number was chosen for the search string
-    private ArrayList<Pair<String, Integer>> ndbNoFrequencyMapping;
+    // sorted by weight, descending
+    private String[] ids;
+
+    // a selection at time t adds 2^((t - landmarkMs) / HALF_LIFE_MS), so newer selections weigh more without having
+    // to decay the existing weights
+    private double[] weights;
+
+    private int size;
+
+    private long landmarkMs;
 
     public SearchStringStat(String searchString)
     {
         this.searchString = searchString;
-        ndbNoFrequencyMapping = new ArrayList<>();
+        this.ids = new String[CAPACITY];
+        this.weights = new double[CAPACITY];
+        this.landmarkMs = System.currentTimeMillis();
     }
 
 
     public SearchStringStat()
     {
+        this(null);
     }
 
     public String getSearchString()
@@ -34,33 +72,88 @@ public class SearchStringStat implements Serializable
      */
     public void putResult(String ndbNumber)
     {
-        for (int i = 0; i < ndbNoFrequencyMapping.size(); i++)
-            if (ndbNoFrequencyMapping.get(i).first.equals(ndbNumber))
+        putResult(ndbNumber, System.currentTimeMillis());
+    }
+
+    /**
+     * @param ndbNumber NDB number of the foodItem that the user selected after searching for this search string
+     * @param timeMs    When the item was selected
+     */
+    public void putResult(String ndbNumber, long timeMs)
+    {
+        if ((timeMs - landmarkMs) / (double) HALF_LIFE_MS > MAX_LANDMARK_HALF_LIVES)
+            moveLandmark(timeMs);
+
+        add(ndbNumber, Math.pow(2, (timeMs - landmarkMs) / (double) HALF_LIFE_MS));
+    }
+
+    private void add(String id, double weight)
+    {
+        int index = -1;
+        for (int i = 0; i < size; i++)
+        {
+            if (ids[i].equals(id))
             {
-                int prevFrequency = ndbNoFrequencyMapping.get(i).second;
-                ndbNoFrequencyMapping.set(i, new Pair<>(ndbNumber, prevFrequency + 1));
-                return;
+                index = i;
+                break;
             }
+        }
 
-        // this ndb number hasn't been recorded yet
-        ndbNoFrequencyMapping.add(new Pair<>(ndbNumber, 1));
+        if (index == -1)
+        {
+            if (size < ids.length)
+            {
+                index = size++;
+                weights[index] = 0;
+            } else
+            {
+                // replace the least common id; it inherits its weight, which may overestimate the new id
+                index = size - 1;
+            }
+            ids[index] = id;
+        }
+        weights[index] += weight;
+
+        // restore order
+        while (index > 0 && weights[index] > weights[index - 1])
+        {
+            String id0 = ids[index];
+            ids[index] = ids[index - 1];
+            ids[index - 1] = id0;
+            double weight0 = weights[index];
+            weights[index] = weights[index - 1];
+            weights[index - 1] = weight0;
+            index--;
+        }
     }
 
     /**
-     * @return Pair consisting of NDB number (1st comp) and frequency (2nd comp) with the highest frequency of all pairs
+     * Adds the selections of other with their weights, e.g. to combine search strings that mean the same
      */
-    public Pair<String, Integer> getMostCommonPair()
+    public void merge(SearchStringStat other)
     {
-        if (ndbNoFrequencyMapping.isEmpty())
-            return null;
+        if (other.landmarkMs > landmarkMs)
+            moveLandmark(other.landmarkMs);
 
-        Pair<String, Integer> highestPair = ndbNoFrequencyMapping.get(0);
+        double factor = Math.pow(2, (other.landmarkMs - landmarkMs) / (double) HALF_LIFE_MS);
+        for (int i = 0; i < other.size; i++)
+            add(other.ids[i], other.weights[i] * factor);
+    }
 
-        for (Pair<String, Integer> pair : ndbNoFrequencyMapping)
-            if (pair.second > highestPair.second)
-                highestPair = pair;
+    private void moveLandmark(long timeMs)
+    {
+        double factor = Math.pow(2, -(timeMs - landmarkMs) / (double) HALF_LIFE_MS);
+        for (int i = 0; i < size; i++)
+            weights[i] *= factor;
+        landmarkMs = timeMs;
+    }
 
-        return highestPair;
+    /**
+     * @return Pair consisting of NDB number (1st comp) and frequency (2nd comp) with the highest frequency of all pairs
+     */
+    public Pair<String, Integer> getMostCommonPair()
+    {
+        return getPair(0);
     }
 
 
@@ -69,25 +162,68 @@ public class SearchStringStat implements Serializable
      */
     public Pair<String, Integer> getSecondMostCommonPair()
     {
-        Pair<String, Integer> mostCommonPair = getMostCommonPair();
-        if (mostCommonPair == null)
-            return null;
-
-        // remove most common pair and then do the same as in getMostCommonPair
-        ArrayList<Pair<String, Integer>> listCopy = new ArrayList<>();
-        listCopy.addAll(ndbNoFrequencyMapping);
-        listCopy.remove(mostCommonPair);
+        return getPair(1);
+    }
 
-        if (listCopy.isEmpty())
+    /**
+     * @return Pair with the id at the given rank and its frequency, decayed to the current time
+     */
+    private Pair<String, Integer> getPair(int rank)
+    {
+        if (rank >= size)
             return null;
 
-        Pair<String, Integer> highestPair = listCopy.get(0);
+        double decayed = weights[rank] * Math.pow(2, -(System.currentTimeMillis() - landmarkMs) / (double) HALF_LIFE_MS);
+        return new Pair<>(ids[rank], (int) Math.max(1, Math.round(decayed)));
+    }
 
-        for (Pair<String, Integer> pair : listCopy)
-            if (pair.second > highestPair.second)
-                highestPair = pair;
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("searchString", searchString);
+        fields.put("ids", ids);
+        fields.put("weights", weights);
+        fields.put("size", size);
+        fields.put("landmarkMs", landmarkMs);
+        out.writeFields();
+    }
 
-        return highestPair;
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        searchString = (String) fields.get("searchString", null);
+        ids = (String[]) fields.get("ids", null);
+
+        if (ids != null)
+        {
+            weights = (double[]) fields.get("weights", null);
+            size = fields.get("size", 0);
+            landmarkMs = fields.get("landmarkMs", 0L);
+            return;
+        }
+
+        // old format: the most frequent ids with their counts, without any information about when they were selected
+        ids = new String[CAPACITY];
+        weights = new double[CAPACITY];
+        landmarkMs = System.currentTimeMillis();
+
+        ArrayList<Pair<String, Integer>> mapping = (ArrayList<Pair<String, Integer>>) fields.get("ndbNoFrequencyMapping",
+                null);
+        if (mapping != null)
+        {
+            List<Pair<String, Integer>> sorted = new ArrayList<>(mapping);
+            Collections.sort(sorted, new Comparator<Pair<String, Integer>>()
+            {
+                @Override
+                public int compare(Pair<String, Integer> o1, Pair<String, Integer> o2)
+                {
+                    return o2.second.compareTo(o1.second);
+                }
+            });
+            for (int i = 0; i < Math.min(CAPACITY, sorted.size()); i++)
+                add(sorted.get(i).first, sorted.get(i).second);
+        }
     }
 
     @Override
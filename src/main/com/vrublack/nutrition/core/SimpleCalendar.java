@@ -89,6 +89,38 @@ public class SimpleCalendar implements Serializable, IsSerializable, Comparable<
         this.minute = minute;
     }
 
+    /**
+     * @return Number of days since 1970-01-01 (proleptic Gregorian calendar), ignoring the time
+     */
+    public int toEpochDay()
+    {
+        // computed without java.time so that this also works on the client
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @param epochDay Number of days since 1970-01-01
+     * @return Calendar for that day at 00:00
+     */
+    public static SimpleCalendar fromEpochDay(int epochDay)
+    {
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return new SimpleCalendar(day, month, year, 0, 0);
+    }
+
     /**
      * @return Date in format yyyy-MM-dd
      */
@@ -1,98 +1,146 @@
 package com.vrublack.nutrition.core;
 
 
+import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.*;
 
 /**
- * Adapter for asynchronous food data source
+ * Adapter for asynchronous food data source. Blocks until the result is available or the timeout has passed.
  */
 public class SyncFoodDataSourceAdapter implements SyncFoodDataSource
 {
-    private AsyncFoodDataSource asyncFoodDataSource;
+    /**
+     * How long an operation is waited for by default
+     */
+    public final static long DEFAULT_TIMEOUT_MS = 30000;
+
+    private FutureFoodDataSource futureFoodDataSource;
+
+    private long timeoutMs;
 
     public SyncFoodDataSourceAdapter(AsyncFoodDataSource asyncFoodDataSource)
     {
-        this.asyncFoodDataSource = asyncFoodDataSource;
+        this(toFutureFoodDataSource(asyncFoodDataSource), DEFAULT_TIMEOUT_MS);
     }
 
-    @Override
-    public List<SearchResultItem> search(String searchStr, SearchHistory history, boolean autocomplete)
+    public SyncFoodDataSourceAdapter(FutureFoodDataSource futureFoodDataSource)
     {
-        final CountDownLatch countDownLatch = new CountDownLatch(1);
-        // a wrapper has to be used because the variable needs to be final
-        final ResultsWrapper<List<SearchResultItem>> result = new ResultsWrapper<>();
-        asyncFoodDataSource.search(searchStr, new AsyncFoodDataSource.SearchCallback()
-        {
-            @Override
-            public void onSuccess(List<SearchResultItem> results)
-            {
-                result.data = results;
-                countDownLatch.countDown();
-            }
+        this(futureFoodDataSource, DEFAULT_TIMEOUT_MS);
+    }
 
-            @Override
-            public void onFailure(int errorCode)
-            {
-                countDownLatch.countDown();
-            }
-        });
+    /**
+     * @param timeoutMs Operations that take longer are cancelled and treated like an error
+     */
+    public SyncFoodDataSourceAdapter(FutureFoodDataSource futureFoodDataSource, long timeoutMs)
+    {
+        this.futureFoodDataSource = futureFoodDataSource;
+        this.timeoutMs = timeoutMs;
+    }
 
-        return result.data;
+    @Override
+    public List<SearchResultItem> search(String searchStr, SearchHistory history, boolean autocomplete)
+    {
+        return await(futureFoodDataSource.search(searchStr, history, autocomplete));
     }
 
     @Override
     public FoodItem retrieve(String id, SearchHistory history)
     {
-        final CountDownLatch countDownLatch = new CountDownLatch(1);
-        // a wrapper has to be used because the variable needs to be final
-        final ResultsWrapper<FoodItem> result = new ResultsWrapper<>();
-        asyncFoodDataSource.retrieve(id, new AsyncFoodDataSource.RetrieveCallback()
+        return await(futureFoodDataSource.retrieve(id, history));
+    }
+
+    @Override
+    public FoodItem get(String id)
+    {
+        return await(futureFoodDataSource.get(id));
+    }
+
+    /**
+     * @return Result of the future or <code>null</code> if it failed or didn't complete in time
+     */
+    private <T> T await(Future<T> future)
+    {
+        try
+        {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e)
+        {
+            future.cancel(true);
+            return null;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return null;
+        } catch (ExecutionException | CancellationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return View of the callback-based source as a future-based source. Results that arrive after the future has
+     * been cancelled are ignored.
+     */
+    private static FutureFoodDataSource toFutureFoodDataSource(final AsyncFoodDataSource asyncFoodDataSource)
+    {
+        return new FutureFoodDataSource()
         {
             @Override
-            public void onSuccess(FoodItem foodItem)
+            public CompletableFuture<List<SearchResultItem>> search(String searchStr, SearchHistory history, boolean autocomplete)
             {
-                result.data = foodItem;
-                countDownLatch.countDown();
+                final CompletableFuture<List<SearchResultItem>> result = new CompletableFuture<>();
+                asyncFoodDataSource.search(searchStr, new AsyncFoodDataSource.SearchCallback()
+                {
+                    @Override
+                    public void onSuccess(List<SearchResultItem> results)
+                    {
+                        result.complete(results);
+                    }
+
+                    @Override
+                    public void onFailure(int errorCode)
+                    {
+                        result.completeExceptionally(new IOException("Error code " + errorCode));
+                    }
+                });
+                return result;
             }
 
             @Override
-            public void onFailure(int errorCode)
+            public CompletableFuture<FoodItem> retrieve(String id, SearchHistory history)
             {
-                countDownLatch.countDown();
+                CompletableFuture<FoodItem> result = new CompletableFuture<>();
+                asyncFoodDataSource.retrieve(id, toCallback(result));
+                return result;
             }
-        });
 
-        return result.data;
+            @Override
+            public CompletableFuture<FoodItem> get(String id)
+            {
+                CompletableFuture<FoodItem> result = new CompletableFuture<>();
+                asyncFoodDataSource.get(id, toCallback(result));
+                return result;
+            }
+        };
     }
 
-    @Override
-    public FoodItem get(String id)
+    private static AsyncFoodDataSource.RetrieveCallback toCallback(final CompletableFuture<FoodItem> result)
     {
-        final CountDownLatch countDownLatch = new CountDownLatch(1);
-        // a wrapper has to be used because the variable needs to be final
-        final ResultsWrapper<FoodItem> result = new ResultsWrapper<>();
-        asyncFoodDataSource.get(id, new AsyncFoodDataSource.RetrieveCallback()
+        return new AsyncFoodDataSource.RetrieveCallback()
         {
             @Override
             public void onSuccess(FoodItem foodItem)
             {
-                result.data = foodItem;
-                countDownLatch.countDown();
+                result.complete(foodItem);
             }
 
             @Override
             public void onFailure(int errorCode)
             {
-                countDownLatch.countDown();
+                result.completeExceptionally(new IOException("Error code " + errorCode));
             }
-        });
-
-        return result.data;
-    }
-
-    private class ResultsWrapper<T>
-    {
-        public T data;
+        };
     }
 }
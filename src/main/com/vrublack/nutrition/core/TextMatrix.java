@@ -35,16 +35,16 @@ public class TextMatrix extends DisplayMatrix
         String[] result = new String[numRows];
         for (int row = 0; row < numRows; row++)
         {
-            String rowStr = "";
+            StringBuilder rowStr = new StringBuilder();
             for (int col = 0; col < numCols; col++)
             {
                 String entry = getCell(row, col);
-                rowStr += entry;
+                rowStr.append(entry);
                 int remainingSpace = colWidth[col] + padding - entry.length();
                 for (int k = 0; k < remainingSpace; k++)
-                    rowStr += " ";
+                    rowStr.append(' ');
             }
-            result[row] = rowStr;
+            result[row] = rowStr.toString();
         }
 
         return result;
@@ -56,9 +56,9 @@ public class TextMatrix extends DisplayMatrix
     public String formatToString()
     {
         String[] lines = formatToLines();
-        String result = "";
+        StringBuilder result = new StringBuilder();
         for (String s : lines)
-            result += s + "\n";
-        return result;
+            result.append(s).append('\n');
+        return result.toString();
     }
 }
@@ -8,9 +8,14 @@ import javax.crypto.spec.SecretKeySpec;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 
 /**
@@ -18,16 +23,54 @@ import java.util.*;
  */
 public class FatSecretAPIHelper
 {
-    private static final String URL_BASE = "http://platform.fatsecret.com/rest/server.api?";
+    public static final String DEFAULT_URL_BASE = "https://platform.fatsecret.com/rest/server.api?";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15000;
 
     /* Private Data */
     private String mConsumerKey;
     private String mConsumerSecret;
 
+    private final String mUrlBase;
+    private final int mReadTimeoutMs;
+
+    // keeps connections alive between requests
+    private final HttpClient mHttpClient;
+
+    /* Signing of search and retrieve requests */
+    // "POST&" + encoded url + "&", the part of the signature base that is the same for all requests
+    private String mSignatureBasePrefix;
+    // encoded parameters that are the same for all requests
+    private List<String> mStaticParameters;
+    // initialized with the secret, so it is created once per thread instead of once per request
+    private ThreadLocal<Mac> mMac;
+
     public FatSecretAPIHelper(String consumerKey, String consumerSecret)
+    {
+        this(consumerKey, consumerSecret, DEFAULT_URL_BASE, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param urlBase          Url of the REST endpoint, ending in "?"
+     * @param connectTimeoutMs Timeout for establishing a connection
+     * @param readTimeoutMs    Timeout for receiving the response to a request
+     */
+    public FatSecretAPIHelper(String consumerKey, String consumerSecret, String urlBase, int connectTimeoutMs,
+                              int readTimeoutMs)
     {
         mConsumerKey = consumerKey;
         mConsumerSecret = consumerSecret;
+        mUrlBase = urlBase;
+        mReadTimeoutMs = readTimeoutMs;
+
+        mHttpClient = HttpClient.newBuilder()
+                // HTTP/2 needs TLS here, plain http would only cause an upgrade attempt for each connection
+                .version(urlBase.startsWith("https") ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+
+        prepareSigning();
     }
 
     /* Getters and Setters */
@@ -39,6 +82,7 @@ public class FatSecretAPIHelper
     public void setConsumerKey(String _consumerKey)
     {
         this.mConsumerKey = _consumerKey;
+        prepareSigning();
     }
 
     public String getConsumerSecret()
@@ -49,6 +93,7 @@ public class FatSecretAPIHelper
     public void setConsumerSecret(String _consumerSecret)
     {
         this.mConsumerSecret = _consumerSecret;
+        prepareSigning();
     }
 
     /* Public Methods */
@@ -59,7 +104,7 @@ public class FatSecretAPIHelper
 
     public FatSecretAuth ProfileCreate(String userID) throws FatSecretException
     {
-        String urlBase = URL_BASE + "method=profile.create";
+        String urlBase = mUrlBase + "method=profile.create";
 
         if (userID != null)
             urlBase += "&user_id=" + userID;
@@ -91,7 +136,7 @@ public class FatSecretAPIHelper
 
     public FatSecretAuth ProfileGetAuth(String userID) throws FatSecretException
     {
-        String urlBase = URL_BASE + "method=profile.get_auth&user_id=" + userID;
+        String urlBase = mUrlBase + "method=profile.get_auth&user_id=" + userID;
 
         try
         {
@@ -120,7 +165,7 @@ public class FatSecretAPIHelper
 
     public String ProfileRequestScriptSessionKey(String token, String secret, int expires, int consumeWithin, String permittedReferrerRegex, boolean cookie) throws FatSecretException
     {
-        String urlBase = URL_BASE + "method=profile.request_script_session_key";
+        String urlBase = mUrlBase + "method=profile.request_script_session_key";
 
         if (expires > -1)
             urlBase += "&expires=" + expires;
@@ -161,64 +206,57 @@ public class FatSecretAPIHelper
 
     public String search(String expression) throws FatSecretException
     {
-        expression = expression.trim();
-
-        try
-        {
-            OAuthBase oAuth = new OAuthBase();
-
-            URL url = new URL(URL_BASE);
-
-            Result result = new Result();
-
+        return doSignedRequest(getSearchParams(expression), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
 
-            List<String[]> furtherParams = new ArrayList<>();
-            furtherParams.add(new String[]{"method", "foods.search"});
-            furtherParams.add(new String[]{"search_expression", expression});
-            furtherParams.add(new String[]{"page_number", "0"});
-            furtherParams.add(new String[]{"max_results", "50"});
+    /**
+     * Like search(), but the response isn't buffered
+     *
+     * @return Response body, which the caller has to close
+     */
+    public InputStream searchAsStream(String expression) throws FatSecretException
+    {
+        return doSignedRequest(getSearchParams(expression), HttpResponse.BodyHandlers.ofInputStream());
+    }
 
-            oAuth.generateSignature(url, mConsumerKey, mConsumerSecret, null, null, result, "json", furtherParams);
+    private static List<String[]> getSearchParams(String expression)
+    {
+        expression = expression.trim();
 
-            return doHttpMethodReq(result.getNormalizedUrl(), "POST", result.getNormalizedRequestParameters() + "&" + OAuthBase.OAUTH_SIGNATURE + "=" + URLEncoder.encode(result.getSignature(), "utf-8"), null);
-        } catch (FatSecretException ex)
-        {
-            throw ex;
-        } catch (Exception ex)
-        {
-            throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
-        }
+        List<String[]> furtherParams = new ArrayList<>();
+        furtherParams.add(new String[]{"method", "foods.search"});
+        furtherParams.add(new String[]{"search_expression", expression});
+        furtherParams.add(new String[]{"page_number", "0"});
+        furtherParams.add(new String[]{"max_results", "50"});
+        return furtherParams;
     }
 
     public String retrieve(String id) throws FatSecretException
     {
-        try
-        {
-            OAuthBase oAuth = new OAuthBase();
-
-            URL url = new URL(URL_BASE);
-
-            Result result = new Result();
-
+        return doSignedRequest(getRetrieveParams(id), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
 
-            List<String[]> furtherParams = new ArrayList<>();
-            furtherParams.add(new String[]{"method", "food.get"});
-            furtherParams.add(new String[]{"food_id", id});
-            oAuth.generateSignature(url, mConsumerKey, mConsumerSecret, null, null, result, "json", furtherParams);
+    /**
+     * Like retrieve(), but the response isn't buffered
+     *
+     * @return Response body, which the caller has to close
+     */
+    public InputStream retrieveAsStream(String id) throws FatSecretException
+    {
+        return doSignedRequest(getRetrieveParams(id), HttpResponse.BodyHandlers.ofInputStream());
+    }
 
-            return doHttpMethodReq(result.getNormalizedUrl(), "POST", result.getNormalizedRequestParameters() + "&" + OAuthBase.OAUTH_SIGNATURE + "=" + URLEncoder.encode(result.getSignature(), "utf-8"), null);
-        } catch (FatSecretException ex)
-        {
-            throw ex;
-        } catch (Exception ex)
-        {
-            throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
-        }
+    private static List<String[]> getRetrieveParams(String id)
+    {
+        List<String[]> furtherParams = new ArrayList<>();
+        furtherParams.add(new String[]{"method", "food.get"});
+        furtherParams.add(new String[]{"food_id", id});
+        return furtherParams;
     }
 
     public String ProfileRequestScriptSessionKey(String userID, int expires, int consumeWithin, String permittedReferrerRegex, boolean cookie) throws FatSecretException
     {
-        String urlBase = URL_BASE + "method=profile.request_script_session_key&user_id=" + userID;
+        String urlBase = mUrlBase + "method=profile.request_script_session_key&user_id=" + userID;
 
         if (expires > -1)
             urlBase += "&expires=" + expires;
@@ -258,68 +296,147 @@ public class FatSecretAPIHelper
     }
 
     /* Private Methods */
-    private String doHttpMethodReq(String urlStr, String requestMethod, String paramStr, Map<String, String> header) throws FatSecretException
+
+    /**
+     * Precomputes everything for signing search and retrieve requests that doesn't change between requests
+     */
+    private void prepareSigning()
     {
-        StringBuffer sb = new StringBuffer();
         try
         {
-            // Construct data
-            // Send data
-            URL url = new URL(urlStr);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            if (requestMethod != null)
-                conn.setRequestMethod(requestMethod);
-
-            if (header != null)
+            URL url = new URL(mUrlBase);
+            String normalizedUrl = url.getProtocol() + "://" + url.getHost();
+            if (url.getPort() != -1 && !((url.getProtocol().equals("http") && url.getPort() == 80) || (url.getProtocol().equals("https") && url.getPort() == 443)))
             {
-                for (String key : header.keySet())
-                {
-                    conn.setRequestProperty(key, header.get(key));
-                }
+                normalizedUrl += ":" + url.getPort();
             }
+            normalizedUrl += url.getPath();
+            mSignatureBasePrefix = "POST&" + OAuthBase.encode(normalizedUrl) + "&";
+        } catch (IOException e)
+        {
+            throw new IllegalArgumentException("Invalid url: " + mUrlBase, e);
+        }
 
-            // If use POST, must use this
-            OutputStreamWriter wr = null;
-            if (requestMethod != null && !requestMethod.equals("GET") && !requestMethod.equals("DELETE"))
-            {
-                wr = new OutputStreamWriter(conn.getOutputStream());
-                wr.write(paramStr);
-                wr.flush();
-            }
+        List<String> staticParameters = new ArrayList<>();
+        staticParameters.add(OAuthBase.OAUTH_VERSION + "=" + OAuthBase.encode(OAuthBase.OAUTH_VERSION_NUMBER));
+        staticParameters.add(OAuthBase.OAUTH_SIGNATURE_METHOD + "=" + OAuthBase.encode("HMAC-SHA1"));
+        staticParameters.add(OAuthBase.OAUTH_CONSUMER_KEY + "=" + OAuthBase.encode(mConsumerKey));
+        staticParameters.add(OAuthBase.OAUTH_FORMAT + "=" + OAuthBase.encode("json"));
+        mStaticParameters = staticParameters;
 
-            // Get the response
-            BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            do
+        final SecretKeySpec signingKey = new SecretKeySpec((mConsumerSecret + "&").getBytes(StandardCharsets.UTF_8), "HMAC-SHA1");
+        mMac = new ThreadLocal<Mac>()
+        {
+            @Override
+            protected Mac initialValue()
             {
-                String line = null;
                 try
                 {
-                    line = br.readLine();
-                } catch (IOException e)
+                    Mac mac = Mac.getInstance("HmacSHA1");
+                    mac.init(signingKey);
+                    return mac;
+                } catch (Exception e)
                 {
-                    throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
+                    throw new RuntimeException("Unable to generate HMAC-SHA1", e);
                 }
+            }
+        };
+    }
 
-                if (line == null)
-                    break;
+    /**
+     * Signs a request without token like OAuthBase.generateSignature, but with the precomputed parts, and sends it
+     *
+     * @param furtherParams Parameters of the request in addition to the OAuth parameters
+     * @param bodyHandler   Determines how the response body is returned
+     * @return Response body
+     */
+    private <T> T doSignedRequest(List<String[]> furtherParams, HttpResponse.BodyHandler<T> bodyHandler) throws FatSecretException
+    {
+        try
+        {
+            List<String> parameters = new ArrayList<>(mStaticParameters.size() + furtherParams.size() + 2);
+            parameters.addAll(mStaticParameters);
+            parameters.add(OAuthBase.OAUTH_NONCE + "=" + OAuthBase.encode(OAuthBase.generateNonce()));
+            parameters.add(OAuthBase.OAUTH_TIMESTAMP + "=" + OAuthBase.encode(OAuthBase.generateTimeStamp()));
+            for (String[] pair : furtherParams)
+                parameters.add(pair[0] + "=" + OAuthBase.encode(pair[1]));
+            Collections.sort(parameters);
+
+            StringBuilder normalized = new StringBuilder();
+            for (int i = 0; i < parameters.size(); i++)
+            {
+                if (i > 0)
+                    normalized.append('&');
+                normalized.append(parameters.get(i));
+            }
+            String normalizedRequestParameters = normalized.toString();
 
-                sb.append(line).append("\n");
-            } while (true);
+            String signatureBase = mSignatureBasePrefix + OAuthBase.encode(normalizedRequestParameters);
+            String signature = Base64Util.encodeBytes(mMac.get().doFinal(signatureBase.getBytes(StandardCharsets.UTF_8)));
 
-            if (wr != null)
-                wr.close();
+            return doHttpMethodReq(mUrlBase, "POST", normalizedRequestParameters + "&" + OAuthBase.OAUTH_SIGNATURE + "=" + URLEncoder.encode(signature, "utf-8"), null, bodyHandler);
+        } catch (FatSecretException ex)
+        {
+            throw ex;
+        } catch (Exception ex)
+        {
+            throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
+        }
+    }
+
+    private String doHttpMethodReq(String urlStr, String requestMethod, String paramStr, Map<String, String> header) throws FatSecretException
+    {
+        return doHttpMethodReq(urlStr, requestMethod, paramStr, header, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    private <T> T doHttpMethodReq(String urlStr, String requestMethod, String paramStr, Map<String, String> header,
+                                  HttpResponse.BodyHandler<T> bodyHandler) throws FatSecretException
+    {
+        try
+        {
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(urlStr))
+                    .timeout(Duration.ofMillis(mReadTimeoutMs));
+
+            if (header != null)
+            {
+                for (String key : header.keySet())
+                {
+                    request.header(key, header.get(key));
+                }
+            }
 
-            if (br != null)
-                br.close();
+            if (requestMethod == null)
+                requestMethod = "GET";
+            // If use POST, must use this
+            if (!requestMethod.equals("GET") && !requestMethod.equals("DELETE"))
+            {
+                request.header("Content-Type", "application/x-www-form-urlencoded");
+                request.method(requestMethod, HttpRequest.BodyPublishers.ofString(paramStr, StandardCharsets.UTF_8));
+            } else
+            {
+                request.method(requestMethod, HttpRequest.BodyPublishers.noBody());
+            }
 
+            HttpResponse<T> response = mHttpClient.send(request.build(), bodyHandler);
+            if (response.statusCode() != 200)
+            {
+                // release the connection
+                if (response.body() instanceof Closeable)
+                    ((Closeable) response.body()).close();
+                throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
+            }
+            return response.body();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
+        } catch (FatSecretException e)
+        {
+            throw e;
         } catch (Exception e)
         {
             throw new FatSecretException(1, "An unknown error occurred: 'please try again later'");
         }
-        String response = sb.toString();
-        return response;
     }
 
     private Document loadXmlDocument(String xml) throws FatSecretException
@@ -515,14 +632,14 @@ public class FatSecretAPIHelper
             }
         }
 
-        private String generateTimeStamp()
+        private static String generateTimeStamp()
         {
             // normally this should be System.currentTimeMillis() / 1000 but for some reason (maybe timezone-related) the server denies such requests
             long timestamp = System.currentTimeMillis() * 2;
             return Long.toString(timestamp);
         }
 
-        private String generateNonce()
+        private static String generateNonce()
         {
             return UUID.randomUUID().toString().replace("-", "");
         }
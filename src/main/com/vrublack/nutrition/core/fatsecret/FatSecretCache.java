@@ -0,0 +1,227 @@
+package com.vrublack.nutrition.core.fatsecret;
+
+import com.vrublack.nutrition.core.SearchResultItem;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two-tier cache for responses of the FatSecret API: a small LRU map in memory over a directory with one file per
+ * entry. Items are keyed by food id and search results by the normalized query. Expired entries are kept, so they
+ * can still be served when the API can't be reached.
+ */
+public class FatSecretCache
+{
+    public final static long DEFAULT_ITEM_TTL_MS = 30L * 24 * 60 * 60 * 1000;
+    public final static long DEFAULT_SEARCH_TTL_MS = 24L * 60 * 60 * 1000;
+    public final static int DEFAULT_MEMORY_ENTRIES = 500;
+
+    private final static String ITEM_PREFIX = "item_";
+    private final static String SEARCH_PREFIX = "search_";
+
+    // null if entries are only kept in memory
+    private final File directory;
+
+    private final long itemTtlMs;
+    private final long searchTtlMs;
+
+    private final Map<String, Entry> memory;
+
+
+    /**
+     * @param directory Where entries are persisted (created if it doesn't exist) or <code>null</code> to only keep
+     *                  them in memory
+     */
+    public FatSecretCache(File directory)
+    {
+        this(directory, DEFAULT_ITEM_TTL_MS, DEFAULT_SEARCH_TTL_MS, DEFAULT_MEMORY_ENTRIES);
+    }
+
+    /**
+     * @param directory     Where entries are persisted (created if it doesn't exist) or <code>null</code> to only
+     *                      keep them in memory
+     * @param itemTtlMs     How long a food item is considered up to date
+     * @param searchTtlMs   How long the results for a query are considered up to date
+     * @param memoryEntries Maximum number of entries in memory
+     */
+    public FatSecretCache(File directory, long itemTtlMs, long searchTtlMs, final int memoryEntries)
+    {
+        this.directory = directory;
+        this.itemTtlMs = itemTtlMs;
+        this.searchTtlMs = searchTtlMs;
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > memoryEntries;
+            }
+        };
+
+        if (directory != null && !directory.exists())
+            directory.mkdirs();
+    }
+
+    /**
+     * @param allowStale Whether an entry that is older than the TTL should be returned
+     * @return Cached item or <code>null</code>
+     */
+    public FatSecretFoodItem getItem(String id, boolean allowStale)
+    {
+        return (FatSecretFoodItem) get(ITEM_PREFIX + id, allowStale ? Long.MAX_VALUE : itemTtlMs);
+    }
+
+    public void putItem(FatSecretFoodItem item)
+    {
+        put(ITEM_PREFIX + item.getId(), item);
+    }
+
+    /**
+     * @param allowStale Whether an entry that is older than the TTL should be returned
+     * @return Cached results for the query or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    public List<SearchResultItem> getSearchResults(String query, boolean allowStale)
+    {
+        List<SearchResultItem> results = (List<SearchResultItem>) get(SEARCH_PREFIX + normalizeQuery(query),
+                allowStale ? Long.MAX_VALUE : searchTtlMs);
+        // callers may modify the list
+        return results != null ? new ArrayList<>(results) : null;
+    }
+
+    public void putSearchResults(String query, List<SearchResultItem> results)
+    {
+        put(SEARCH_PREFIX + normalizeQuery(query), new ArrayList<>(results));
+    }
+
+    /**
+     * @return Query in lower case with whitespace collapsed, so that different spellings of a query share an entry
+     */
+    public static String normalizeQuery(String query)
+    {
+        return query.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    private Object get(String key, long maxAgeMs)
+    {
+        Entry entry;
+        synchronized (memory)
+        {
+            entry = memory.get(key);
+        }
+
+        if (entry == null && directory != null)
+        {
+            entry = readEntry(key);
+            if (entry != null)
+            {
+                synchronized (memory)
+                {
+                    memory.put(key, entry);
+                }
+            }
+        }
+
+        if (entry == null || System.currentTimeMillis() - entry.storedAt > maxAgeMs)
+            return null;
+        return entry.value;
+    }
+
+    private void put(String key, Serializable value)
+    {
+        Entry entry = new Entry(key, value, System.currentTimeMillis());
+        synchronized (memory)
+        {
+            memory.put(key, entry);
+        }
+
+        if (directory != null)
+            writeEntry(entry);
+    }
+
+    private Entry readEntry(String key)
+    {
+        File file = getFile(key);
+        if (!file.exists())
+            return null;
+
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            Entry entry = (Entry) in.readObject();
+            // different keys can in theory map to the same file
+            return key.equals(entry.key) ? entry : null;
+        } catch (IOException | ClassNotFoundException | ClassCastException e)
+        {
+            // corrupt or from an incompatible version
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeEntry(Entry entry)
+    {
+        File file = getFile(entry.key);
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeObject(entry);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+
+        // readers never see a partially written entry
+        if (!tmp.renameTo(file))
+        {
+            file.delete();
+            tmp.renameTo(file);
+        }
+    }
+
+    private File getFile(String key)
+    {
+        // the key can contain characters that aren't allowed in file names
+        return new File(directory, sha1(key));
+    }
+
+    private static String sha1(String s)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 1;
+
+        private final String key;
+
+        private final Serializable value;
+
+        private final long storedAt;
+
+        Entry(String key, Serializable value, long storedAt)
+        {
+            this.key = key;
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+}
@@ -44,6 +44,24 @@ public class FatSecretFoodItem extends FoodItem implements Serializable
         return id;
     }
 
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return Brand or <code>null</code> for generic foods
+     */
+    public String getBrandName()
+    {
+        return brandName;
+    }
+
+    public Serving[] getServings()
+    {
+        return servings;
+    }
+
     @Override
     public String getDescription()
     {
@@ -214,5 +232,15 @@ public class FatSecretFoodItem extends FoodItem implements Serializable
         {
 
         }
+
+        public FoodQuantity getQuantity()
+        {
+            return quantity;
+        }
+
+        public float getCalories()
+        {
+            return calories;
+        }
     }
 }
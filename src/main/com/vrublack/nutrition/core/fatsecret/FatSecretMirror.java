@@ -0,0 +1,311 @@
+package com.vrublack.nutrition.core.fatsecret;
+
+import com.vrublack.nutrition.core.*;
+import com.vrublack.nutrition.core.search.DescriptionBase;
+import com.vrublack.nutrition.core.search.HashFoodSearch;
+import com.vrublack.nutrition.core.userdb.UserFoodDatabase;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps every item that was retrieved from the FatSecret API in a local file and searches those items first. The
+ * remote source is only queried if none of the mirrored items matches the query well, so foods that the user has
+ * eaten before are found without a network round trip.
+ */
+public class FatSecretMirror implements SyncFoodDataSource
+{
+    // design pattern: decorator
+
+    private final SyncFoodDataSource remote;
+
+    private final File file;
+
+    private final DescriptionBase descriptionBase;
+
+    // by id
+    private final Map<String, MirroredItem> items = Collections.synchronizedMap(new HashMap<String, MirroredItem>());
+
+    private final HashFoodSearch search;
+
+    private String lastSearchStr;
+
+
+    /**
+     * @param remote          Source that items are retrieved from when they aren't mirrored yet
+     * @param file            Where the mirrored items are stored (created if it doesn't exist)
+     * @param descriptionBase Dictionary for the canonical form of the item names
+     */
+    public FatSecretMirror(SyncFoodDataSource remote, File file, DescriptionBase descriptionBase)
+    {
+        this.remote = remote;
+        this.file = file;
+        this.descriptionBase = descriptionBase;
+
+        for (FatSecretFoodItem item : load())
+            items.put(item.getId(), new MirroredItem(item, descriptionBase));
+        search = new HashFoodSearch(new ArrayList<>(items.values()), descriptionBase);
+    }
+
+    /**
+     * File format: for every item, the length of the serialized item as an int followed by the serialized item.
+     * Later items replace earlier ones with the same id.
+     */
+    private List<FatSecretFoodItem> load()
+    {
+        List<FatSecretFoodItem> loaded = new ArrayList<>();
+        if (!file.exists())
+            return loaded;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                } catch (EOFException e)
+                {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+
+                try (ObjectInputStream itemIn = new ObjectInputStream(new ByteArrayInputStream(bytes)))
+                {
+                    loaded.add((FatSecretFoodItem) itemIn.readObject());
+                }
+            }
+        } catch (EOFException e)
+        {
+            // the last item was only partially written, the rest is still valid
+        } catch (IOException | ClassNotFoundException e)
+        {
+            e.printStackTrace();
+        }
+        return loaded;
+    }
+
+    private void append(FatSecretFoodItem item)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream itemOut = new ObjectOutputStream(bytes))
+            {
+                itemOut.writeObject(item);
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true))))
+            {
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+        } catch (IOException e)
+        {
+            // the item is still mirrored until the application exits
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void mirror(FatSecretFoodItem item)
+    {
+        MirroredItem mirrored = new MirroredItem(item, descriptionBase);
+        MirroredItem old = items.put(item.getId(), mirrored);
+        if (old != null)
+            search.remove(old);
+        search.insert(mirrored);
+        append(item);
+    }
+
+    @Override
+    public List<SearchResultItem> search(String searchStr, SearchHistory history, boolean autocomplete)
+    {
+        lastSearchStr = searchStr;
+
+        List<SearchResultItem> local = search.searchFood(searchStr, history, autocomplete);
+        if (isGoodMatch(searchStr, local))
+            return local;
+
+        List<SearchResultItem> remoteResults = remote.search(searchStr, history, autocomplete);
+        if (remoteResults == null)
+            return local.isEmpty() ? null : local;
+
+        // local matches score higher than any remote result, so the order stays the same
+        Set<String> localIds = new HashSet<>();
+        for (SearchResultItem item : local)
+            localIds.add(item.getId());
+        List<SearchResultItem> results = new ArrayList<>(local);
+        for (SearchResultItem item : remoteResults)
+            if (!localIds.contains(item.getId()))
+                results.add(item);
+        return results;
+    }
+
+    /**
+     * @return Whether the best result contains every component of the query, in which case asking the remote source
+     * probably wouldn't give a better result
+     */
+    private boolean isGoodMatch(String searchStr, List<SearchResultItem> results)
+    {
+        if (results.isEmpty())
+            return false;
+
+        MirroredItem best = items.get(results.get(0).getId());
+        if (best == null)
+            return false;
+
+        String[] queryComps = descriptionBase.descriptionToBase(searchStr);
+        if (queryComps.length == 0)
+            return false;
+        for (String queryComp : queryComps)
+            if (best.getPriorityForCanonicalComp(queryComp) == 0)
+                return false;
+        return true;
+    }
+
+    @Override
+    public FoodItem retrieve(String id, SearchHistory history)
+    {
+        FoodItem item;
+        MirroredItem mirrored = items.get(id);
+        if (mirrored != null)
+            item = mirrored.item;
+        else
+            item = mirrorIfPossible(remote.retrieve(id, history));
+
+        // update search feedback
+        if (item != null && lastSearchStr != null && history != null)
+        {
+            history.putNDBNumberForSearchResult(lastSearchStr, id);
+            lastSearchStr = null;
+        }
+
+        return item;
+    }
+
+    @Override
+    public FoodItem get(String id)
+    {
+        MirroredItem mirrored = items.get(id);
+        if (mirrored != null)
+            return mirrored.item;
+
+        return mirrorIfPossible(remote.get(id));
+    }
+
+    private FoodItem mirrorIfPossible(FoodItem item)
+    {
+        if (item instanceof FatSecretFoodItem)
+            mirror((FatSecretFoodItem) item);
+        return item;
+    }
+
+    /**
+     * Makes a FatSecretFoodItem searchable by its name and brand
+     */
+    private static class MirroredItem extends CanonicalSearchableFoodItem
+    {
+        // serializable only because CanonicalSearchableFoodItem is; the mirror file holds FatSecretFoodItems, so this
+        // only silences the serial lint
+        private static final long serialVersionUID = 4002338507719692710L;
+
+        private final FatSecretFoodItem item;
+
+        private final DescriptionComp[] descriptionComps;
+
+        private final DescriptionComp[] canonicalDescriptionComps;
+
+        MirroredItem(FatSecretFoodItem item, DescriptionBase descriptionBase)
+        {
+            this.item = item;
+
+            // the brand is less important than the name
+            String description = item.getName();
+            if (item.getBrandName() != null && !item.getBrandName().isEmpty())
+                description += ", " + item.getBrandName();
+            this.descriptionComps = UserFoodDatabase.parseDescriptionComps(description);
+            this.canonicalDescriptionComps = descriptionBase.descriptionCompsToBase(descriptionComps);
+        }
+
+        @Override
+        public DescriptionComp[] getCanonicalDescriptionComps()
+        {
+            return canonicalDescriptionComps;
+        }
+
+        @Override
+        public DescriptionComp[] getDescriptionComps()
+        {
+            return descriptionComps;
+        }
+
+        @Override
+        public String getNutritionInformation()
+        {
+            FatSecretFoodItem.Serving[] servings = item.getServings();
+            if (servings.length == 0)
+                return "";
+
+            FoodQuantity quantity = servings[0].getQuantity();
+            NutrientQuantity carbs = item.getNutrientPerQuantity(Specification.NutrientType.Carbohydrates, quantity);
+            NutrientQuantity protein = item.getNutrientPerQuantity(Specification.NutrientType.Protein, quantity);
+            NutrientQuantity fat = item.getNutrientPerQuantity(Specification.NutrientType.Fat, quantity);
+
+            return "Per " + quantity.getQuantifier() + " " + quantity.getDetailedUnit()
+                    + " - Calories: " + Math.round(servings[0].getCalories())
+                    + " kcal | Fat: " + (fat == null ? "-" : fat.rounded())
+                    + " | Carbs: " + (carbs == null ? "-" : carbs.rounded())
+                    + " | Protein: " + (protein == null ? "-" : protein.rounded());
+        }
+
+        @Override
+        public String getId()
+        {
+            return item.getId();
+        }
+
+        @Override
+        public String getDescription()
+        {
+            return item.getDescription();
+        }
+
+        @Override
+        public float getCaloriesPerQuantity(FoodQuantity quantity)
+        {
+            return item.getCaloriesPerQuantity(quantity);
+        }
+
+        @Override
+        public float getRelativePopularity()
+        {
+            return item.getRelativePopularity();
+        }
+
+        @Override
+        public NutrientQuantity getNutrientPerQuantity(Specification.NutrientType type, FoodQuantity quantity)
+        {
+            return item.getNutrientPerQuantity(type, quantity);
+        }
+
+        @Override
+        public NutrientQuantity getNutrientOrZeroPerQuantity(Specification.NutrientType type, FoodQuantity quantity)
+        {
+            return item.getNutrientOrZeroPerQuantity(type, quantity);
+        }
+
+        @Override
+        public String getAbbreviatedDescription()
+        {
+            return item.getAbbreviatedDescription();
+        }
+
+        @Override
+        public FoodQuantity[] getAcceptedUnits()
+        {
+            return item.getAcceptedUnits();
+        }
+    }
+}
@@ -1,13 +1,12 @@
 package com.vrublack.nutrition.core.fatsecret;
 
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.vrublack.nutrition.core.*;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -20,9 +19,60 @@ public class FatsecretAPI implements SyncFoodDataSource
     private String apiSecret;
     private final static String credentialFile = "fatsecret_credentials.txt";
 
+    private final static String cacheDirectory = "fatsecret_cache";
+
+    private FatSecretAPIHelper apiHelper;
+
+    private FatSecretCache cache;
+
+    // nutrients that a serving may contain in addition to carbohydrates, protein and fat
+    private final static Map<String, Pair<Specification.NutrientType, NutrientQuantity.Unit>> optionalNutrients = new HashMap<>();
+
+    static
+    {
+        optionalNutrients.put("saturated_fat", new Pair<>(Specification.NutrientType.FatSaturated, NutrientQuantity.Unit.g));
+        optionalNutrients.put("polyunsaturated_fat", new Pair<>(Specification.NutrientType.FatPolyunsaturated, NutrientQuantity.Unit.g));
+        optionalNutrients.put("monounsaturated_fat", new Pair<>(Specification.NutrientType.FatMonounsaturated, NutrientQuantity.Unit.g));
+        optionalNutrients.put("trans_fat", new Pair<>(Specification.NutrientType.FatTrans, NutrientQuantity.Unit.g));
+        optionalNutrients.put("cholesterol", new Pair<>(Specification.NutrientType.Cholesterol, NutrientQuantity.Unit.Mg));
+        optionalNutrients.put("sodium", new Pair<>(Specification.NutrientType.Sodium, NutrientQuantity.Unit.Mg));
+        optionalNutrients.put("potassium", new Pair<>(Specification.NutrientType.Potassium, NutrientQuantity.Unit.Mg));
+        optionalNutrients.put("fiber", new Pair<>(Specification.NutrientType.Fiber, NutrientQuantity.Unit.g));
+        optionalNutrients.put("sugar", new Pair<>(Specification.NutrientType.Sugar, NutrientQuantity.Unit.g));
+        optionalNutrients.put("vitamin_a", new Pair<>(Specification.NutrientType.VitaminA, NutrientQuantity.Unit.Percent));
+        optionalNutrients.put("vitamin_c", new Pair<>(Specification.NutrientType.VitaminC, NutrientQuantity.Unit.Percent));
+        optionalNutrients.put("calcium", new Pair<>(Specification.NutrientType.Calcium, NutrientQuantity.Unit.Percent));
+        optionalNutrients.put("iron", new Pair<>(Specification.NutrientType.Iron, NutrientQuantity.Unit.Percent));
+    }
+
     public FatsecretAPI()
+    {
+        this(new FatSecretCache(new File(cacheDirectory)));
+    }
+
+    /**
+     * @param cache Cache for responses
+     */
+    public FatsecretAPI(FatSecretCache cache)
     {
         loadCredentials();
+        this.apiHelper = new FatSecretAPIHelper(apiKey, apiSecret);
+        this.cache = cache;
+    }
+
+    /**
+     * Uses the given credentials instead of the credential file, e. g. to connect to a local test server
+     *
+     * @param urlBase Url of the REST endpoint, ending in "?"
+     * @param cache   Cache for responses
+     */
+    public FatsecretAPI(String apiKey, String apiSecret, String urlBase, FatSecretCache cache)
+    {
+        this.apiKey = apiKey;
+        this.apiSecret = apiSecret;
+        this.apiHelper = new FatSecretAPIHelper(apiKey, apiSecret, urlBase,
+                FatSecretAPIHelper.DEFAULT_CONNECT_TIMEOUT_MS, FatSecretAPIHelper.DEFAULT_READ_TIMEOUT_MS);
+        this.cache = cache;
     }
 
     /**
@@ -71,78 +121,160 @@ public class FatsecretAPI implements SyncFoodDataSource
     {
         // autocomplete not supported
 
-        try
+        List<SearchResultItem> cached = cache.getSearchResults(searchStr, false);
+        if (cached != null)
+            return cached;
+
+        try (JsonReader reader = openReader(apiHelper.searchAsStream(searchStr)))
         {
-            FatSecretAPIHelper apiHelper = new FatSecretAPIHelper(apiKey, apiSecret);
-            String response;
-            response = apiHelper.search(searchStr);
-            return parseSearchResults(response);
+            List<SearchResultItem> results = parseSearchResults(reader);
+            cache.putSearchResults(searchStr, results);
+            return results;
         } catch (Exception e)
         {
-            return new ArrayList<>();
+            // offline: outdated results are better than none
+            // otherwise the error is reported like the interface requires
+            return cache.getSearchResults(searchStr, true);
         }
     }
 
-    private List<SearchResultItem> parseSearchResults(String s)
+    private static JsonReader openReader(InputStream in)
+    {
+        return new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Parses the response to foods.search while it is read. Only the fields that are needed are materialized.
+     */
+    private List<SearchResultItem> parseSearchResults(JsonReader reader) throws IOException, FatSecretException
     {
         List<SearchResultItem> searchResultItems = new ArrayList<>();
 
-        JsonObject jsonObject = new JsonParser().parse(s).getAsJsonObject();
-        JsonObject foods = jsonObject.get("foods").getAsJsonObject();
-        String maxResults = foods.get("max_results").getAsString();
-        int totalResults = Integer.parseInt(foods.get("total_results").getAsString());
-        String pageNumber = foods.get("page_number").getAsString();
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (name.equals("foods"))
+            {
+                reader.beginObject();
+                while (reader.hasNext())
+                {
+                    // if there are no results, there is no food element at all
+                    if (reader.nextName().equals("food"))
+                    {
+                        // if there is only one food it's not an array
+                        if (reader.peek() == JsonToken.BEGIN_ARRAY)
+                        {
+                            reader.beginArray();
+                            while (reader.hasNext())
+                                searchResultItems.add(parseSearchResult(reader));
+                            reader.endArray();
+                        } else
+                        {
+                            searchResultItems.add(parseSearchResult(reader));
+                        }
+                    } else
+                    {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("error"))
+            {
+                throw parseError(reader);
+            } else
+            {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        if (totalResults == 0)
-            return searchResultItems;
+        return searchResultItems;
+    }
 
-        JsonArray foodArray;
-        JsonElement foodElement = foods.get("food");
-        // if there is only one serving it's not an array
-        if (foodElement.isJsonArray())
-        {
-            foodArray = foodElement.getAsJsonArray();
-        } else
+    private SearchResultItem parseSearchResult(JsonReader reader) throws IOException
+    {
+        String brandName = "";
+        String description = null;
+        String id = null;
+        String name = null;
+
+        reader.beginObject();
+        while (reader.hasNext())
         {
-            foodArray = new JsonArray();
-            foodArray.add(foodElement);
+            switch (reader.nextName())
+            {
+                case "brand_name":
+                    brandName = reader.nextString();
+                    break;
+                case "food_description":
+                    description = reader.nextString();
+                    break;
+                case "food_id":
+                    id = reader.nextString();
+                    break;
+                case "food_name":
+                    name = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
         }
+        reader.endObject();
+
+        String completeName = name;
+        if (!brandName.isEmpty())
+            completeName += " (" + brandName + ")";
+
+        return new SearchResultItem(id, completeName, description, 0, 1);
+    }
 
-        for (int i = 0; i < foodArray.size(); i++)
+    /**
+     * @return Exception for an error object like {"code": 8, "message": "Invalid signature"}
+     */
+    private FatSecretException parseError(JsonReader reader) throws IOException
+    {
+        int code = 1;
+        String message = "";
+
+        reader.beginObject();
+        while (reader.hasNext())
         {
-            JsonObject entry = foodArray.get(i).getAsJsonObject();
-
-            String brandName = "";
-            if (entry.has("brand_name"))
-                brandName = entry.get("brand_name").getAsString();
-            String description = entry.get("food_description").getAsString();
-            String id = entry.get("food_id").getAsString();
-            String name = entry.get("food_name").getAsString();
-            String type = entry.get("food_type").getAsString();
-            String url = entry.get("food_url").getAsString();
-
-            String completeName = name;
-            if (!brandName.isEmpty())
-                completeName += " (" + brandName + ")";
-
-            searchResultItems.add(new SearchResultItem(id, completeName, description, 0, 1));
+            switch (reader.nextName())
+            {
+                case "code":
+                    code = Integer.parseInt(reader.nextString());
+                    break;
+                case "message":
+                    message = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
         }
+        reader.endObject();
 
-        return searchResultItems;
+        return new FatSecretException(code, message);
     }
 
     @Override
     public FatSecretFoodItem retrieve(String id, SearchHistory history)
     {
-        try
+        FatSecretFoodItem cached = cache.getItem(id, false);
+        if (cached != null)
+            return cached;
+
+        try (JsonReader reader = openReader(apiHelper.retrieveAsStream(id)))
         {
-            FatSecretAPIHelper apiHelper = new FatSecretAPIHelper(apiKey, apiSecret);
-            String response;
-            response = apiHelper.retrieve(id);
-            return parseFoodItem(response);
+            FatSecretFoodItem item = parseFoodItem(reader);
+            cache.putItem(item);
+            return item;
         } catch (Exception e)
         {
-            return null;
+            // offline: an outdated item is better than none
+            return cache.getItem(id, true);
         }
     }
 
@@ -153,125 +285,141 @@ public class FatsecretAPI implements SyncFoodDataSource
         return retrieve(id, null);
     }
 
-    private FatSecretFoodItem parseFoodItem(String s)
+    /**
+     * Parses the response to food.get while it is read. Only the fields that are needed are materialized.
+     */
+    private FatSecretFoodItem parseFoodItem(JsonReader reader) throws IOException, FatSecretException
     {
-        JsonObject jsonObject = new JsonParser().parse(s).getAsJsonObject();
+        FatSecretFoodItem item = null;
 
-        JsonObject food = jsonObject.getAsJsonObject("food");
-        String id = food.get("food_id").getAsString();
-        String name = food.get("food_name").getAsString();
-        String brandName = null;
-        if (food.has("brand_name"))
-            brandName = food.get("brand_name").getAsString();
-        String type = food.get("food_type").getAsString();
-        // String url = food.get("food_url").getAsString();
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            if (name.equals("food"))
+                item = parseFood(reader);
+            else if (name.equals("error"))
+                throw parseError(reader);
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+
+        if (item == null)
+            throw new FatSecretException(1, "Response doesn't contain a food");
+        return item;
+    }
 
+    private FatSecretFoodItem parseFood(JsonReader reader) throws IOException
+    {
+        String id = null;
+        String name = null;
+        String brandName = null;
+        String type = null;
         List<FatSecretFoodItem.Serving> servings = new ArrayList<>();
 
-        JsonArray servingArray;
-        JsonElement servingElement = food.get("servings").getAsJsonObject().get("serving");
-        // if there is only one serving it's not an array
-        if (servingElement.isJsonArray())
-        {
-            servingArray = servingElement.getAsJsonArray();
-        } else
+        reader.beginObject();
+        while (reader.hasNext())
         {
-            servingArray = new JsonArray();
-            servingArray.add(servingElement);
-        }
-        for (int i = 0; i < servingArray.size(); i++)
-        {
-            JsonObject serving = servingArray.get(i).getAsJsonObject();
-
-            Map<Specification.NutrientType, NutrientQuantity> nutrients = new HashMap<>();
-
-            // String servingID = serving.get("serving_id").getAsString();
-            // String servingDescription = serving.get("serving_description").getAsString();
-            // String servingUrl = serving.get("serving_url").getAsString();
-            float metricServingAmount = serving.has("metric_serving_amount") ?
-                    Float.parseFloat(serving.get("metric_serving_amount").getAsString()) : -1;
-            String metricServingUnit = serving.has("metric_serving_unit") ?
-                    serving.get("metric_serving_unit").getAsString() : null;
-            float numberOfUnits = Float.parseFloat(serving.get("number_of_units").getAsString());
-            String measurementDescription = serving.get("measurement_description").getAsString();
-            float calories = Float.parseFloat(serving.get("calories").getAsString());
-            float carbs = Float.parseFloat(serving.get("carbohydrate").getAsString());
-            float protein = Float.parseFloat(serving.get("protein").getAsString());
-            float fat = Float.parseFloat(serving.get("fat").getAsString());
-
-            nutrients.put(Specification.NutrientType.Carbohydrates, new NutrientQuantity(carbs, NutrientQuantity.Unit.g));
-            nutrients.put(Specification.NutrientType.Protein, new NutrientQuantity(protein, NutrientQuantity.Unit.g));
-            nutrients.put(Specification.NutrientType.Fat, new NutrientQuantity(fat, NutrientQuantity.Unit.g));
-
-            if (serving.has("saturated_fat"))
-            {
-                float saturatedFat = Float.parseFloat(serving.get("saturated_fat").getAsString());
-                nutrients.put(Specification.NutrientType.FatSaturated, new NutrientQuantity(saturatedFat, NutrientQuantity.Unit.g));
-            }
-            if (serving.has("polyunsaturated_fat"))
-            {
-                float polyunsaturatedFat = Float.parseFloat(serving.get("polyunsaturated_fat").getAsString());
-                nutrients.put(Specification.NutrientType.FatPolyunsaturated, new NutrientQuantity(polyunsaturatedFat, NutrientQuantity.Unit.g));
-            }
-            if (serving.has("monounsaturated_fat"))
-            {
-                float monounsaturatedFat = Float.parseFloat(serving.get("monounsaturated_fat").getAsString());
-                nutrients.put(Specification.NutrientType.FatMonounsaturated, new NutrientQuantity(monounsaturatedFat, NutrientQuantity.Unit.g));
-            }
-            if (serving.has("trans_fat"))
-            {
-                float transFat = Float.parseFloat(serving.get("trans_fat").getAsString());
-                nutrients.put(Specification.NutrientType.FatTrans, new NutrientQuantity(transFat, NutrientQuantity.Unit.g));
-            }
-            if (serving.has("cholesterol"))
-            {
-                float cholesterol = Float.parseFloat(serving.get("cholesterol").getAsString());
-                nutrients.put(Specification.NutrientType.Cholesterol, new NutrientQuantity(cholesterol, NutrientQuantity.Unit.Mg));
-            }
-            if (serving.has("sodium"))
+            switch (reader.nextName())
             {
-                float sodium = Float.parseFloat(serving.get("sodium").getAsString());
-                nutrients.put(Specification.NutrientType.Sodium, new NutrientQuantity(sodium, NutrientQuantity.Unit.Mg));
+                case "food_id":
+                    id = reader.nextString();
+                    break;
+                case "food_name":
+                    name = reader.nextString();
+                    break;
+                case "brand_name":
+                    brandName = reader.nextString();
+                    break;
+                case "food_type":
+                    type = reader.nextString();
+                    break;
+                case "servings":
+                    reader.beginObject();
+                    while (reader.hasNext())
+                    {
+                        if (!reader.nextName().equals("serving"))
+                        {
+                            reader.skipValue();
+                            continue;
+                        }
+
+                        // if there is only one serving it's not an array
+                        if (reader.peek() == JsonToken.BEGIN_ARRAY)
+                        {
+                            reader.beginArray();
+                            while (reader.hasNext())
+                                servings.add(parseServing(reader));
+                            reader.endArray();
+                        } else
+                        {
+                            servings.add(parseServing(reader));
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
-            if (serving.has("potassium"))
-            {
-                float potassium = Float.parseFloat(serving.get("potassium").getAsString());
-                nutrients.put(Specification.NutrientType.Potassium, new NutrientQuantity(potassium, NutrientQuantity.Unit.Mg));
-            }
-            if (serving.has("fiber"))
-            {
-                float fiber = Float.parseFloat(serving.get("fiber").getAsString());
-                nutrients.put(Specification.NutrientType.Fiber, new NutrientQuantity(fiber, NutrientQuantity.Unit.g));
-            }
-            if (serving.has("sugar"))
-            {
-                float sugar = Float.parseFloat(serving.get("sugar").getAsString());
-                nutrients.put(Specification.NutrientType.Sugar, new NutrientQuantity(sugar, NutrientQuantity.Unit.g));
-            }
-            if (serving.has("vitamin_a"))
-            {
-                float vitaminA = Float.parseFloat(serving.get("vitamin_a").getAsString());
-                nutrients.put(Specification.NutrientType.VitaminA, new NutrientQuantity(vitaminA, NutrientQuantity.Unit.Percent));
-            }
-            if (serving.has("vitamin_c"))
-            {
-                float vitaminC = Float.parseFloat(serving.get("vitamin_c").getAsString());
-                nutrients.put(Specification.NutrientType.VitaminC, new NutrientQuantity(vitaminC, NutrientQuantity.Unit.Percent));
-            }
-            if (serving.has("calcium"))
-            {
-                float calcium = Float.parseFloat(serving.get("calcium").getAsString());
-                nutrients.put(Specification.NutrientType.Calcium, new NutrientQuantity(calcium, NutrientQuantity.Unit.Percent));
-            }
-            if (serving.has("iron"))
+        }
+        reader.endObject();
+
+        return new FatSecretFoodItem(id, name, brandName, type, servings.toArray(new FatSecretFoodItem.Serving[servings.size()]));
+    }
+
+    private FatSecretFoodItem.Serving parseServing(JsonReader reader) throws IOException
+    {
+        Map<Specification.NutrientType, NutrientQuantity> nutrients = new HashMap<>();
+
+        float metricServingAmount = -1;
+        String metricServingUnit = null;
+        float numberOfUnits = 0;
+        String measurementDescription = null;
+        float calories = 0;
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            String name = reader.nextName();
+            switch (name)
             {
-                float iron = Float.parseFloat(serving.get("iron").getAsString());
-                nutrients.put(Specification.NutrientType.Iron, new NutrientQuantity(iron, NutrientQuantity.Unit.Percent));
+                case "metric_serving_amount":
+                    metricServingAmount = Float.parseFloat(reader.nextString());
+                    break;
+                case "metric_serving_unit":
+                    metricServingUnit = reader.nextString();
+                    break;
+                case "number_of_units":
+                    numberOfUnits = Float.parseFloat(reader.nextString());
+                    break;
+                case "measurement_description":
+                    measurementDescription = reader.nextString();
+                    break;
+                case "calories":
+                    calories = Float.parseFloat(reader.nextString());
+                    break;
+                case "carbohydrate":
+                    nutrients.put(Specification.NutrientType.Carbohydrates, new NutrientQuantity(Float.parseFloat(reader.nextString()), NutrientQuantity.Unit.g));
+                    break;
+                case "protein":
+                    nutrients.put(Specification.NutrientType.Protein, new NutrientQuantity(Float.parseFloat(reader.nextString()), NutrientQuantity.Unit.g));
+                    break;
+                case "fat":
+                    nutrients.put(Specification.NutrientType.Fat, new NutrientQuantity(Float.parseFloat(reader.nextString()), NutrientQuantity.Unit.g));
+                    break;
+                default:
+                    Pair<Specification.NutrientType, NutrientQuantity.Unit> nutrient = optionalNutrients.get(name);
+                    if (nutrient != null)
+                        nutrients.put(nutrient.first, new NutrientQuantity(Float.parseFloat(reader.nextString()), nutrient.second));
+                    else
+                        reader.skipValue();
+                    break;
             }
-
-            servings.add(new FatSecretFoodItem.Serving(numberOfUnits, measurementDescription, metricServingAmount, metricServingUnit, calories, nutrients));
         }
+        reader.endObject();
 
-        return new FatSecretFoodItem(id, name, brandName, type, servings.toArray(new FatSecretFoodItem.Serving[servings.size()]));
+        return new FatSecretFoodItem.Serving(numberOfUnits, measurementDescription, metricServingAmount, metricServingUnit, calories, nutrients);
     }
 }
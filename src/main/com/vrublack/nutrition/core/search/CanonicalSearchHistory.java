@@ -0,0 +1,146 @@
+package com.vrublack.nutrition.core.search;
+
+import com.vrublack.nutrition.core.SearchHistory;
+import com.vrublack.nutrition.core.SearchStringStat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Search history that treats queries as equal if they have the same canonical components (see DescriptionBase), so
+ * that "Bananas", "banana " and "banan" share their selections. Selections are also passed on to the underlying
+ * history, which stores them by search string.
+ * <p>
+ * The components are sorted and hashed to a 64 bit key, so a search engine that has already converted the query to
+ * base can look up the history with getNDBNumberForKey() without converting it again.
+ */
+public class CanonicalSearchHistory implements SearchHistory
+{
+    // design pattern: decorator
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private final SearchHistory history;
+
+    private final DescriptionBase descriptionBase;
+
+    // by key of the canonical components
+    private final ConcurrentHashMap<Long, SearchStringStat> stats = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param history         History that selections are passed on to
+     * @param descriptionBase Dictionary for the canonical form of queries
+     * @param selections      Previous selections by search string, e.g. from the underlying history. They are merged
+     *                        with their weights, so an id that was selected more often stays ahead.
+     */
+    public CanonicalSearchHistory(SearchHistory history, DescriptionBase descriptionBase,
+                                  Collection<SearchStringStat> selections)
+    {
+        this.history = history;
+        this.descriptionBase = descriptionBase;
+
+        for (SearchStringStat selection : selections)
+        {
+            synchronized (selection)
+            {
+                SearchStringStat stat = getStat(selection.getSearchString());
+                if (stat != null)
+                    stat.merge(selection);
+            }
+        }
+    }
+
+    /**
+     * @param canonicalComps Query converted with DescriptionBase.descriptionToBase()
+     * @return Key that doesn't depend on the order of the components (FNV-1a hash of the sorted components)
+     */
+    public static long getKey(String[] canonicalComps)
+    {
+        String[] sorted = canonicalComps.clone();
+        Arrays.sort(sorted);
+
+        long hash = FNV_OFFSET_BASIS;
+        for (String comp : sorted)
+        {
+            for (int i = 0; i < comp.length(); i++)
+            {
+                char c = comp.charAt(i);
+                hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+            }
+            // separator, so that ["ab", "c"] and ["a", "bc"] differ
+            hash = (hash ^ 0xff) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @param key Key from getKey()
+     * @return Id that the user most likely is looking for or <code>null</code>
+     */
+    public String getNDBNumberForKey(long key)
+    {
+        SearchStringStat stat = stats.get(key);
+        if (stat == null)
+            return null;
+
+        synchronized (stat)
+        {
+            return stat.getMostCommonPair().first;
+        }
+    }
+
+    @Override
+    public String getNDBNumberForSearchResult(String searchString)
+    {
+        String[] canonicalComps = descriptionBase.descriptionToBase(searchString);
+        if (canonicalComps.length == 0)
+            return history.getNDBNumberForSearchResult(searchString);
+
+        return getNDBNumberForKey(getKey(canonicalComps));
+    }
+
+    @Override
+    public void putNDBNumberForSearchResult(String searchString, String selectedNDBNumber)
+    {
+        record(searchString, selectedNDBNumber);
+        history.putNDBNumberForSearchResult(searchString, selectedNDBNumber);
+    }
+
+    private void record(String searchString, String selectedNDBNumber)
+    {
+        SearchStringStat stat = getStat(searchString);
+        if (stat == null)
+            return;
+
+        synchronized (stat)
+        {
+            stat.putResult(selectedNDBNumber);
+        }
+    }
+
+    /**
+     * @return Stat that searchString shares with the queries that have the same canonical components, or
+     * <code>null</code> if it doesn't have any
+     */
+    private SearchStringStat getStat(String searchString)
+    {
+        String[] canonicalComps = descriptionBase.descriptionToBase(searchString);
+        if (canonicalComps.length == 0)
+            return null;
+
+        long key = getKey(canonicalComps);
+        SearchStringStat stat = stats.get(key);
+        if (stat == null)
+        {
+            SearchStringStat created = new SearchStringStat(searchString);
+            stat = stats.putIfAbsent(key, created);
+            if (stat == null)
+                stat = created;
+        }
+        return stat;
+    }
+}
@@ -4,6 +4,7 @@ import com.swabunga.spell.engine.SpellDictionaryHashMap;
 import com.swabunga.spell.engine.Word;
 import com.swabunga.spell.event.SpellChecker;
 import com.vrublack.nutrition.core.Pair;
+import com.vrublack.nutrition.core.SearchableFoodItem;
 import org.tartarus.snowball.ext.englishStemmer;
 
 import java.io.BufferedReader;
@@ -13,7 +14,8 @@ import java.io.InputStreamReader;
 import java.util.*;
 
 /**
- * Provides utilities to convert a description to a canonical, "base" form
+ * Provides utilities to convert a description to a canonical, "base" form. The stemmer and spell checker keep state,
+ * so the conversion methods are synchronized to allow sharing one instance between databases.
  */
 public class DescriptionBase
 {
@@ -78,7 +80,7 @@ public class DescriptionBase
      * @param desc Description, like "brown sugar". Can also contain commas or other separators, like "Tomatoes, canned, no solids"
      * @return Decomposed query in base form
      */
-    public String[] descriptionToBase(String desc)
+    public synchronized String[] descriptionToBase(String desc)
     {
         String[] comps = desc.split("[^\\w]");
 
@@ -93,6 +95,26 @@ public class DescriptionBase
         return decomposed.toArray(new String[decomposed.size()]);
     }
 
+    /**
+     * @return Comps with every component converted to its base form. Components that are decomposed into
+     * multiple base components keep the priority of the original component.
+     */
+    public SearchableFoodItem.DescriptionComp[] descriptionCompsToBase(SearchableFoodItem.DescriptionComp[] comps)
+    {
+        List<SearchableFoodItem.DescriptionComp> canonicalComps = new ArrayList<>();
+        for (SearchableFoodItem.DescriptionComp comp : comps)
+        {
+            for (String base : descriptionToBase(comp.comp))
+            {
+                SearchableFoodItem.DescriptionComp canonicalComp = new SearchableFoodItem.DescriptionComp();
+                canonicalComp.comp = base;
+                canonicalComp.priority = comp.priority;
+                canonicalComps.add(canonicalComp);
+            }
+        }
+        return canonicalComps.toArray(new SearchableFoodItem.DescriptionComp[canonicalComps.size()]);
+    }
+
     /**
      * Like descriptionToBase(), but does autocomplete on the last component.
      *
@@ -101,7 +123,7 @@ public class DescriptionBase
      * an array of the entire decomposition plus the possible completion is returned.
      * NOTE: possible completion might be multiple components.
      */
-    public String[][] descriptionToBaseAutocomplete(String desc)
+    public synchronized String[][] descriptionToBaseAutocomplete(String desc)
     {
         String[] comps = desc.split("[^\\w]");
 
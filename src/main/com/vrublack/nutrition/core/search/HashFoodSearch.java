@@ -17,16 +17,18 @@ public class HashFoodSearch implements FoodSearch
     private final static float[] searchCompFactor = {1f, 0.9f, 0.8f, 0.7f, 0.6f};
 
     // use hashset as inner structure to make sure components of query don't get matched twice (milk -> "milk, buttermilk")
-    private Map<String, Set<CanonicalSearchableFoodItem>> entryComps;
+    // The index is copy-on-write: a published map and its sets are never modified, so a search can work on one
+    // consistent snapshot while items are inserted or removed.
+    private volatile Map<String, Set<CanonicalSearchableFoodItem>> entryComps;
 
     private final DescriptionBase descriptionBase;
 
 
-    public HashFoodSearch(List<CanonicalSearchableFoodItem> entries, DescriptionBase base)
+    public HashFoodSearch(List<? extends CanonicalSearchableFoodItem> entries, DescriptionBase base)
     {
         descriptionBase = base;
 
-        entryComps = new HashMap<>();
+        Map<String, Set<CanonicalSearchableFoodItem>> entryComps = new HashMap<>();
         for (CanonicalSearchableFoodItem entry : entries)
         {
             for (SearchableFoodItem.DescriptionComp comp : entry.getCanonicalDescriptionComps())
@@ -36,17 +38,70 @@ public class HashFoodSearch implements FoodSearch
                 entryComps.get(comp.comp).add(entry);
             }
         }
+        this.entryComps = entryComps;
     }
 
-    @Override
-    public List<SearchResultItem> searchFood(String searchString, SearchHistory history, boolean autocomplete)
+    /**
+     * Adds an item to the index without rebuilding it
+     */
+    public void insert(CanonicalSearchableFoodItem item)
     {
-        String commonId = null;
-        if (history != null)
+        insert(Collections.singletonList(item));
+    }
+
+    /**
+     * Adds items to the index without rebuilding it. Only the sets of the affected components are copied, so
+     * inserting many items at once is cheaper than inserting them one by one.
+     */
+    public synchronized void insert(Collection<? extends CanonicalSearchableFoodItem> items)
+    {
+        Map<String, Set<CanonicalSearchableFoodItem>> updated = new HashMap<>(entryComps);
+        Set<String> copiedComps = new HashSet<>();
+        for (CanonicalSearchableFoodItem item : items)
+        {
+            for (SearchableFoodItem.DescriptionComp comp : item.getCanonicalDescriptionComps())
+            {
+                if (copiedComps.add(comp.comp))
+                {
+                    Set<CanonicalSearchableFoodItem> existing = updated.get(comp.comp);
+                    updated.put(comp.comp, existing == null ? new HashSet<CanonicalSearchableFoodItem>()
+                            : new HashSet<>(existing));
+                }
+                updated.get(comp.comp).add(item);
+            }
+        }
+        entryComps = updated;
+    }
+
+    /**
+     * Removes an item that was previously added to the index without rebuilding it
+     *
+     * @param item Same instance that was added
+     */
+    public synchronized void remove(CanonicalSearchableFoodItem item)
+    {
+        Map<String, Set<CanonicalSearchableFoodItem>> updated = new HashMap<>(entryComps);
+        for (SearchableFoodItem.DescriptionComp comp : item.getCanonicalDescriptionComps())
         {
-            // TODO do this after the query has been converted to base (to make it invariant under spelling mistakes and formatting)
-            commonId = history.getNDBNumberForSearchResult(searchString);
+            Set<CanonicalSearchableFoodItem> existing = updated.get(comp.comp);
+            if (existing == null || !existing.contains(item))
+                continue;
+
+            Set<CanonicalSearchableFoodItem> copy = new HashSet<>(existing);
+            copy.remove(item);
+            if (copy.isEmpty())
+                updated.remove(comp.comp);
+            else
+                updated.put(comp.comp, copy);
         }
+        entryComps = updated;
+    }
+
+    @Override
+    public List<SearchResultItem> searchFood(String searchString, SearchHistory history, boolean autocomplete)
+    {
+        // work on one snapshot of the index for the entire search
+        Map<String, Set<CanonicalSearchableFoodItem>> entryComps = this.entryComps;
 
         // possibilities for autocompletions
         String[][] searchPossibilities;
@@ -55,6 +110,17 @@ public class HashFoodSearch implements FoodSearch
         else
             searchPossibilities = new String[][]{descriptionBase.descriptionToBase(searchString)};
 
+        String commonId = null;
+        if (history != null)
+        {
+            if (!autocomplete && history instanceof CanonicalSearchHistory)
+                // the query has already been converted to base, so that doesn't have to be done again
+                commonId = ((CanonicalSearchHistory) history).getNDBNumberForKey(
+                        CanonicalSearchHistory.getKey(searchPossibilities[0]));
+            else
+                commonId = history.getNDBNumberForSearchResult(searchString);
+        }
+
         // values are vectors for each possible completion.
         final Map<SearchableFoodItem, float[]> matchScores = new HashMap<>();
         for (int i = 0; i < searchPossibilities.length; i++)
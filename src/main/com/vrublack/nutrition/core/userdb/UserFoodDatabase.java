@@ -2,28 +2,44 @@ package com.vrublack.nutrition.core.userdb;
 
 
 import com.vrublack.nutrition.core.*;
+import com.vrublack.nutrition.core.search.DescriptionBase;
 import com.vrublack.nutrition.core.search.FoodSearch;
+import com.vrublack.nutrition.core.search.HashFoodSearch;
 import com.vrublack.nutrition.core.search.LevenshteinFoodSearch;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Database of food items that the user created. Implementation mostly same as USDAFoodDatabase
  */
 public abstract class UserFoodDatabase implements SyncFoodDataSource
 {
-    private List<UserFoodItem> entries;
+    // by id; synchronized because items can be created while other threads search
+    private Map<String, UserFoodItem> entries;
 
     private String lastSearchStr;
 
-    private FoodSearch foodSearch;
+    private volatile FoodSearch foodSearch;
+
+    // null if the description base couldn't be loaded, in which case the slower LevenshteinFoodSearch is used
+    private DescriptionBase descriptionBase;
+    private HashFoodSearch hashFoodSearch;
+
+    private UserFoodJournal journal;
+
+    // records in the file that were replaced by a later edit or removed by a delete
+    private final AtomicInteger deadRecords = new AtomicInteger();
 
 
     private static transient final int LINE_MIN_LENGTH = 26;
 
+    // a line that starts with this marks the item with the following id as deleted
+    private static transient final String TOMBSTONE_PREFIX = "-";
+
     // Positions in line
     private static transient final int ID_POS = 0;
     private static transient final int DESC_POS = 1;
@@ -82,7 +98,37 @@ public abstract class UserFoodDatabase implements SyncFoodDataSource
     {
         parseAsciiFile();
 
-        foodSearch = new LevenshteinFoodSearch(getSearchableFoodItems());
+        // compact before anything is served, so no appends have to be coordinated with it
+        if (deadRecords.get() > entries.size())
+        {
+            try
+            {
+                compact();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        try
+        {
+            descriptionBase = getDescriptionBase();
+        } catch (FileNotFoundException e)
+        {
+            e.printStackTrace();
+        }
+
+        if (descriptionBase != null)
+        {
+            List<UserFoodItem> items = getItems();
+            for (UserFoodItem item : items)
+                item.setCanonicalDescriptionComps(descriptionBase.descriptionCompsToBase(item.getDescriptionComps()));
+            hashFoodSearch = new HashFoodSearch(items, descriptionBase);
+            foodSearch = hashFoodSearch;
+        } else
+        {
+            foodSearch = new LevenshteinFoodSearch(getSearchableFoodItems());
+        }
     }
 
     /**
@@ -91,9 +137,22 @@ public abstract class UserFoodDatabase implements SyncFoodDataSource
     public abstract BufferedReader getBufferedReader() throws IOException;
 
     /**
-     * @return Writer that is in append mode.
+     * @return Description base for hash search or <code>null</code> if only the slower LevenshteinFoodSearch should be used
      */
-    public abstract BufferedWriter getBufferedWriter() throws IOException;
+    // design pattern: template method
+    public abstract DescriptionBase getDescriptionBase() throws FileNotFoundException;
+
+    /**
+     * @return New journal for the file that the BufferedReader reads. Called at most once.
+     */
+    public abstract UserFoodJournal openJournal() throws IOException;
+
+    private synchronized UserFoodJournal getJournal() throws IOException
+    {
+        if (journal == null)
+            journal = openJournal();
+        return journal;
+    }
 
     /**
      * Parses ascii file containing foodItem items and their nutrition values.
@@ -101,13 +160,26 @@ public abstract class UserFoodDatabase implements SyncFoodDataSource
     // template design pattern
     private void parseAsciiFile()
     {
-        entries = new LinkedList<>();
+        entries = Collections.synchronizedMap(new LinkedHashMap<String, UserFoodItem>());
         try (BufferedReader br = getBufferedReader())
         {
             String line;
             while ((line = br.readLine()) != null)
             {
-                entries.add(parseFood(line));
+                if (line.isEmpty())
+                    continue;
+
+                // later records for the same id replace earlier ones
+                if (line.startsWith(TOMBSTONE_PREFIX))
+                {
+                    entries.remove(parseString(line.substring(TOMBSTONE_PREFIX.length())));
+                    deadRecords.addAndGet(2);
+                } else
+                {
+                    UserFoodItem item = parseFood(line);
+                    if (entries.put(item.getId(), item) != null)
+                        deadRecords.incrementAndGet();
+                }
             }
         } catch (IOException e)
         {
@@ -234,8 +306,107 @@ public abstract class UserFoodDatabase implements SyncFoodDataSource
      */
     public void createItem(UserFoodItem item) throws IOException
     {
-        BufferedWriter writer = getBufferedWriter();
+        createItems(Collections.singletonList(item));
+    }
+
+    /**
+     * Adds all items to the database (persistent). The items are written in one piece, so this is much faster than
+     * calling createItem for each of them.
+     */
+    public void createItems(List<UserFoodItem> items) throws IOException
+    {
+        List<String> lines = new ArrayList<>(items.size());
+        for (UserFoodItem item : items)
+            lines.add(formatLine(item));
+
+        getJournal().append(lines);
+
+        for (UserFoodItem item : items)
+        {
+            if (entries.put(item.getId(), item) != null)
+                deadRecords.incrementAndGet();
+        }
+
+        // update index
+        if (hashFoodSearch != null)
+        {
+            for (UserFoodItem item : items)
+                item.setCanonicalDescriptionComps(descriptionBase.descriptionCompsToBase(item.getDescriptionComps()));
+            hashFoodSearch.insert(items);
+        } else
+        {
+            foodSearch = new LevenshteinFoodSearch(getSearchableFoodItems());
+        }
+    }
+
+    /**
+     * Replaces the item with the same id (persistent).
+     *
+     * @return <code>false</code> if there is no item with that id
+     */
+    public boolean updateItem(UserFoodItem item) throws IOException
+    {
+        UserFoodItem old = entries.get(item.getId());
+        if (old == null)
+            return false;
+
+        getJournal().append(formatLine(item));
+
+        entries.put(item.getId(), item);
+        deadRecords.incrementAndGet();
+
+        if (hashFoodSearch != null)
+        {
+            item.setCanonicalDescriptionComps(descriptionBase.descriptionCompsToBase(item.getDescriptionComps()));
+            hashFoodSearch.remove(old);
+            hashFoodSearch.insert(item);
+        } else
+        {
+            foodSearch = new LevenshteinFoodSearch(getSearchableFoodItems());
+        }
+        return true;
+    }
+
+    /**
+     * Removes the item with the given id (persistent).
+     *
+     * @return <code>false</code> if there is no item with that id
+     */
+    public boolean deleteItem(String id) throws IOException
+    {
+        UserFoodItem old = entries.get(id);
+        if (old == null)
+            return false;
+
+        getJournal().append(TOMBSTONE_PREFIX + "~" + id + "~");
+
+        entries.remove(id);
+        // the tombstone and the record it deletes
+        deadRecords.addAndGet(2);
 
+        if (hashFoodSearch != null)
+            hashFoodSearch.remove(old);
+        else
+            foodSearch = new LevenshteinFoodSearch(getSearchableFoodItems());
+        return true;
+    }
+
+    /**
+     * Rewrites the file so that it only contains the current version of each item. Must not be called while other
+     * threads modify the database.
+     */
+    public void compact() throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        for (UserFoodItem item : getItems())
+            lines.add(formatLine(item));
+
+        getJournal().compact(lines);
+        deadRecords.set(0);
+    }
+
+    private static String formatLine(UserFoodItem item)
+    {
         FoodQuantity defaultQuantity = new FoodQuantity(100.0f, "g", "g");
 
         String[] comps = new String[LINE_MIN_LENGTH + 3 * item.getCommonMeasures().length];
@@ -266,23 +437,16 @@ public abstract class UserFoodDatabase implements SyncFoodDataSource
             comps[LINE_MIN_LENGTH + i * 3 + 2] = Float.toString(commonMeasure.getAmountInGrams());
         }
 
-        String line = "";
-
+        StringBuilder line = new StringBuilder();
         for (int i = 0; i < comps.length; i++)
         {
-            line += comps[i];
+            line.append(comps[i]);
             if (i < comps.length - 1)
-                line += "^";
+                line.append('^');
         }
-
-        writer.write(line + "\n");
-
-        writer.close();
-
-        entries.add(item);
+        return line.toString();
     }
 
-
     @Override
     public List<SearchResultItem> search(String searchStr, SearchHistory history, boolean autocomplete)
     {
@@ -292,36 +456,37 @@ public abstract class UserFoodDatabase implements SyncFoodDataSource
     @Override
     public FoodItem retrieve(String id, SearchHistory history)
     {
-        for (FoodItem foodItem : entries)
-            if (foodItem.getId().equals(id))
+        FoodItem foodItem = entries.get(id);
+        if (foodItem != null)
+        {
+            // update search feedback
+            if (lastSearchStr != null)
             {
-                // update search feedback
-                if (lastSearchStr != null)
-                {
-                    history.putNDBNumberForSearchResult(lastSearchStr, id);
-                    lastSearchStr = null;
-                }
-
-                return foodItem;
+                history.putNDBNumberForSearchResult(lastSearchStr, id);
+                lastSearchStr = null;
             }
-        return null;
+        }
+        return foodItem;
     }
 
     @Override
     public FoodItem get(String id)
     {
-        for (FoodItem foodItem : entries)
-            if (foodItem.getId().equals(id))
-            {
-                return foodItem;
-            }
-        return null;
+        return entries.get(id);
     }
 
     public List<SearchableFoodItem> getSearchableFoodItems()
     {
         List<SearchableFoodItem> searchableFoodItems = new ArrayList<>();
-        searchableFoodItems.addAll(entries);
+        searchableFoodItems.addAll(getItems());
         return searchableFoodItems;
     }
+
+    private List<UserFoodItem> getItems()
+    {
+        synchronized (entries)
+        {
+            return new ArrayList<>(entries.values());
+        }
+    }
 }
@@ -9,13 +9,15 @@ import java.util.Map;
 /**
  * Represents specific food item in a UserFoodDatabase. Implementation same as USDAFoodItem for now.
  */
-public class UserFoodItem extends SearchableFoodItem implements IsSerializable, Serializable
+public class UserFoodItem extends CanonicalSearchableFoodItem implements IsSerializable, Serializable
 {
     private static final long serialVersionUID = 14235;
 
     private String id;
     private String description;
     private SearchableFoodItem.DescriptionComp[] descriptionComps;
+    // derived by the database when the item is indexed, so it isn't stored
+    private transient SearchableFoodItem.DescriptionComp[] canonicalDescriptionComps;
     private float kcal;
     private int popularity;
 
@@ -87,6 +89,23 @@ public class UserFoodItem extends SearchableFoodItem implements IsSerializable,
         return descriptionComps;
     }
 
+    /**
+     * @return Description comps in canonical form or the plain description comps if they haven't been set
+     */
+    @Override
+    public SearchableFoodItem.DescriptionComp[] getCanonicalDescriptionComps()
+    {
+        return canonicalDescriptionComps != null ? canonicalDescriptionComps : descriptionComps;
+    }
+
+    /**
+     * @param canonicalDescriptionComps Description comps in canonical form (see DescriptionBase)
+     */
+    public void setCanonicalDescriptionComps(SearchableFoodItem.DescriptionComp[] canonicalDescriptionComps)
+    {
+        this.canonicalDescriptionComps = canonicalDescriptionComps;
+    }
+
     @Override
     public String getDescription()
     {
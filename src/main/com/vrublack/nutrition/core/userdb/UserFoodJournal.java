@@ -0,0 +1,244 @@
+package com.vrublack.nutrition.core.userdb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Append-only journal with one record per line. The file stays open, and appends that are issued while a write is
+ * in progress are collected and written together with a single force() ("group commit"). An append only returns
+ * once its records are on disk.
+ */
+public class UserFoodJournal implements Closeable
+{
+    private final File file;
+
+    private FileChannel channel;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    private boolean closed = true;
+
+    // set if the writer thread was interrupted, after which nothing is written anymore
+    private volatile boolean writerStopped;
+
+
+    /**
+     * @param file File that records are appended to. It is created if it doesn't exist.
+     */
+    public UserFoodJournal(File file) throws IOException
+    {
+        this.file = file;
+        open();
+    }
+
+    private synchronized void open() throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        closed = false;
+        writerStopped = false;
+
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        };
+        writer.setName("User database journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends record and returns once it is durable
+     */
+    public void append(String record) throws IOException
+    {
+        append(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends records and returns once all of them are durable. The records are written in one piece.
+     */
+    public void append(List<String> records) throws IOException
+    {
+        PendingWrite write = new PendingWrite(records, false);
+        synchronized (this)
+        {
+            if (closed || writerStopped)
+                throw new IOException("Journal is closed");
+            queue.add(write);
+        }
+        // the writer may have stopped after the check
+        if (writerStopped)
+            failQueued();
+        write.await();
+    }
+
+    /**
+     * Rewrites the file so that it only contains liveRecords. The new file is written next to the old one and then
+     * renamed, so the journal is never left in a partial state. Appends block until the compaction is done.
+     */
+    public synchronized void compact(Collection<String> liveRecords) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            close();
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                List<PendingWrite> writes = Collections.singletonList(new PendingWrite(new ArrayList<>(liveRecords), false));
+                write(out, writes);
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            tmp.delete();
+            throw e;
+        } finally
+        {
+            // the old file if it couldn't be replaced, so that appends still work
+            open();
+        }
+    }
+
+    /**
+     * Waits for pending appends and closes the file
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try
+        {
+            if (!writerStopped)
+            {
+                PendingWrite stop = new PendingWrite(Collections.<String>emptyList(), true);
+                queue.add(stop);
+                if (writerStopped)
+                    failQueued();
+                stop.await();
+            }
+        } finally
+        {
+            channel.close();
+        }
+    }
+
+    private void writeLoop()
+    {
+        List<PendingWrite> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop)
+        {
+            try
+            {
+                batch.add(queue.take());
+            } catch (InterruptedException e)
+            {
+                // callers that wait for their writes mustn't hang
+                writerStopped = true;
+                failQueued();
+                return;
+            }
+            // everything that queued up during the last write goes into this one
+            queue.drainTo(batch);
+
+            IOException error = null;
+            try
+            {
+                write(channel, batch);
+                channel.force(false);
+            } catch (IOException e)
+            {
+                error = e;
+            }
+
+            for (PendingWrite write : batch)
+            {
+                stop |= write.stop;
+                write.complete(error);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Completes all writes that are still queued with an error, once the writer has stopped
+     */
+    private void failQueued()
+    {
+        List<PendingWrite> failed = new ArrayList<>();
+        queue.drainTo(failed);
+        for (PendingWrite write : failed)
+            write.complete(new IOException("Journal writer was interrupted"));
+    }
+
+    private static void write(FileChannel channel, List<PendingWrite> writes) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (PendingWrite write : writes)
+            for (String record : write.records)
+                sb.append(record).append('\n');
+
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static class PendingWrite
+    {
+        private final List<String> records;
+
+        // last write before the file is closed
+        private final boolean stop;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private IOException error;
+
+        PendingWrite(List<String> records, boolean stop)
+        {
+            this.records = records;
+            this.stop = stop;
+        }
+
+        void complete(IOException error)
+        {
+            this.error = error;
+            done.countDown();
+        }
+
+        void await() throws IOException
+        {
+            try
+            {
+                done.await();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for journal write");
+            }
+            if (error != null)
+                throw new IOException("Couldn't write to journal", error);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.vrublack.nutrition.core.util;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates named daemon threads, so that background work can't keep the application alive
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String name;
+
+    public DaemonThreadFactory(String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r)
+    {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,256 @@
+package com.vrublack.nutrition;
+
+
+import com.vrublack.nutrition.core.*;
+import com.vrublack.nutrition.core.fatsecret.FatSecretAPIHelper;
+import com.vrublack.nutrition.core.fatsecret.FatSecretCache;
+import com.vrublack.nutrition.core.fatsecret.FatsecretAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs the FatSecret client against FatSecretStubServer and reports:
+ * <ul>
+ * <li>signatures, connection reuse and latency</li>
+ * <li>caching</li>
+ * <li>the composite source when the API is slow</li>
+ * <li>how many searches reach the API while typing</li>
+ * <li>how long picking a prefetched result takes</li>
+ * <li>hedging and the circuit breaker with a slow tail and an outage</li>
+ * </ul>
+ */
+public class FatSecretClientEvaluation
+{
+    private final static String KEY = "evaluationkey";
+    private final static String SECRET = "evaluationsecret";
+
+    private final static int REQUESTS = 500;
+
+    private final static String[] QUERIES = {"big mac", "apples", "chicken breast", "greek yogurt", "oatmeal"};
+
+    private FatSecretStubServer newServer() throws IOException
+    {
+        FatSecretStubServer server = new FatSecretStubServer(new File(FatSecretStubServer.DEFAULT_FIXTURES), SECRET, 42);
+        server.start();
+        return server;
+    }
+
+    public void evaluateClient() throws Exception
+    {
+        FatSecretStubServer server = newServer();
+        try
+        {
+            FatSecretAPIHelper helper = new FatSecretAPIHelper(KEY, SECRET, server.getUrlBase(),
+                    FatSecretAPIHelper.DEFAULT_CONNECT_TIMEOUT_MS, FatSecretAPIHelper.DEFAULT_READ_TIMEOUT_MS);
+
+            // warm up
+            helper.search("apple");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++)
+            {
+                if (i % 2 == 0)
+                    helper.search("chicken breast & rice (100%) " + i);
+                else
+                    helper.retrieve("35755");
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println("--EVALUATING FATSECRET CLIENT--");
+            System.out.println("Requests: " + REQUESTS);
+            System.out.println("Invalid signatures: " + server.getInvalidSignatures());
+            System.out.println("Connections: " + server.getConnections());
+            System.out.println("Average time per request: " + (elapsed / REQUESTS / 1000) + " microseconds");
+        } finally
+        {
+            server.stop();
+        }
+    }
+
+    public void evaluateCache() throws Exception
+    {
+        FatSecretStubServer server = newServer();
+        server.setLatency(20, 10);
+        try
+        {
+            FatsecretAPI api = new FatsecretAPI(KEY, SECRET, server.getUrlBase(), new FatSecretCache(null));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++)
+            {
+                for (String query : QUERIES)
+                {
+                    List<SearchResultItem> results = api.search(query, null, false);
+                    for (SearchResultItem result : results)
+                        api.retrieve(result.getId(), null);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println("--EVALUATING FATSECRET CACHE--");
+            System.out.println("Lookups: " + 10 * QUERIES.length + " searches and their items");
+            System.out.println("Requests that reached the server: " + server.getRequests());
+            System.out.printf("Total time: %.1f ms\n", elapsed / 1000000f);
+
+            // failing server: cached entries are still served
+            server.setErrorRate(1);
+            FoodItem item = api.retrieve("35755", null);
+            System.out.println("Item while server fails: " + (item != null ? item.getDescription() : "none"));
+        } finally
+        {
+            server.stop();
+        }
+    }
+
+    public void evaluateSlowSource() throws Exception
+    {
+        FatSecretStubServer server = newServer();
+        server.setLatency(1500, 500);
+        try
+        {
+            SyncFoodDataSource api = new FatsecretAPI(KEY, SECRET, server.getUrlBase(), new FatSecretCache(null));
+            SyncFoodDataSource composite = new CompositeFoodSource(500, 50, api);
+
+            long start = System.nanoTime();
+            List<SearchResultItem> results = composite.search("apples", null, false);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println("--EVALUATING SLOW SOURCE--");
+            System.out.printf("Composite search with 500 ms deadline returned %d results after %.1f ms\n",
+                    results.size(), elapsed / 1000000f);
+        } finally
+        {
+            server.stop();
+        }
+    }
+
+    public void evaluateAutocomplete() throws Exception
+    {
+        FatSecretStubServer server = newServer();
+        server.setLatency(100, 50);
+        try
+        {
+            FatsecretAPI api = new FatsecretAPI(KEY, SECRET, server.getUrlBase(), new FatSecretCache(null));
+            // the stub server matches substrings, so the results for a prefix can be filtered
+            CoalescingFoodSource coalescing = new CoalescingFoodSource(new FutureFoodDataSourceAdapter(api),
+                    CoalescingFoodSource.DEFAULT_QUIET_PERIOD_MS, CoalescingFoodSource.DEFAULT_TTL_MS, true, 50);
+
+            // type every query with 80 ms between keystrokes, pausing briefly after each word
+            int keystrokes = 0;
+            CompletableFuture<List<SearchResultItem>> last = null;
+            for (String query : QUERIES)
+            {
+                for (int i = 1; i <= query.length(); i++)
+                {
+                    last = coalescing.search(query.substring(0, i), null, true);
+                    keystrokes++;
+                    Thread.sleep(query.charAt(i - 1) == ' ' ? 400 : 80);
+                }
+                last.get();
+            }
+
+            System.out.println("--EVALUATING AUTOCOMPLETE--");
+            System.out.println("Keystrokes: " + keystrokes);
+            System.out.println("Superseded: " + coalescing.getSupersededSearches());
+            System.out.println("Answered locally: " + coalescing.getLocalSearches());
+            System.out.println("Shared: " + coalescing.getSharedSearches());
+            System.out.println("Requests that reached the server: " + server.getRequests());
+        } finally
+        {
+            server.stop();
+        }
+    }
+
+    public void evaluatePrefetch() throws Exception
+    {
+        FatSecretStubServer server = newServer();
+        server.setLatency(150, 50);
+        try
+        {
+            FatsecretAPI api = new FatsecretAPI(KEY, SECRET, server.getUrlBase(), new FatSecretCache(null));
+            PrefetchingFoodSource prefetching = new PrefetchingFoodSource(api);
+
+            // the user reads the results for a moment before picking the first one
+            long total = 0;
+            for (String query : QUERIES)
+            {
+                List<SearchResultItem> results = prefetching.search(query, null, false);
+                Thread.sleep(300);
+                long start = System.nanoTime();
+                prefetching.retrieve(results.get(0).getId(), null);
+                total += System.nanoTime() - start;
+            }
+
+            System.out.println("--EVALUATING PREFETCH--");
+            System.out.println("Prefetches: " + prefetching.getPrefetches() + ", hits: " + prefetching.getHits()
+                    + ", misses: " + prefetching.getMisses());
+            System.out.printf("Average time from picking a result to the item: %.1f ms\n",
+                    total / QUERIES.length / 1000000f);
+        } finally
+        {
+            server.stop();
+        }
+    }
+
+    public void evaluateResilience() throws Exception
+    {
+        FatSecretStubServer server = newServer();
+        server.setLatency(20, 10);
+        server.setSlowTail(0.05f, 1000);
+        try
+        {
+            // without a cache every search reaches the server
+            FatsecretAPI api = new FatsecretAPI(KEY, SECRET, server.getUrlBase(), new FatSecretCache(null, 0, 0, 0));
+            ResilientFoodSource resilient = new ResilientFoodSource(api, 3, 200);
+
+            long[] times = new long[500];
+            for (int i = 0; i < times.length; i++)
+            {
+                long start = System.nanoTime();
+                resilient.search(QUERIES[i % QUERIES.length], null, false);
+                times[i] = (System.nanoTime() - start) / 1000000;
+            }
+            java.util.Arrays.sort(times);
+
+            System.out.println("--EVALUATING RESILIENCE--");
+            System.out.println("Searches: " + times.length + " with 5% taking an extra second");
+            System.out.println("Hedges: " + resilient.getHedges() + ", won: " + resilient.getHedgeWins());
+            System.out.println("Observed p95: " + resilient.getLatencyPercentileMs(95) + " ms");
+            System.out.println("Client p50: " + times[times.length / 2] + " ms, p99: "
+                    + times[times.length * 99 / 100] + " ms");
+
+            // outage: the circuit opens and calls fail immediately until the server recovers
+            server.setSlowTail(0, 0);
+            server.setErrorRate(1);
+            long start = System.nanoTime();
+            for (int i = 0; i < 20; i++)
+                resilient.search("apples", null, false);
+            System.out.printf("20 searches during outage: %.1f ms, state %s, failed fast: %d\n",
+                    (System.nanoTime() - start) / 1000000f, resilient.getState(), resilient.getFailFasts());
+
+            server.setErrorRate(0);
+            Thread.sleep(1000);
+            System.out.println("State after recovery: " + resilient.getState());
+        } finally
+        {
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // otherwise the separately written headers and body of each response are delayed by Nagle's algorithm
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        FatSecretClientEvaluation eval = new FatSecretClientEvaluation();
+        eval.evaluateClient();
+        eval.evaluateCache();
+        eval.evaluateSlowSource();
+        eval.evaluateAutocomplete();
+        eval.evaluatePrefetch();
+        eval.evaluateResilience();
+    }
+}
@@ -0,0 +1,444 @@
+package com.vrublack.nutrition;
+
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the FatSecret REST API that answers foods.search and food.get from fixtures. Latency,
+ * jitter, the rate of failed requests and a rate limit can be configured, so clients can be tested without
+ * credentials or network. Random decisions use a seeded generator.
+ */
+public class FatSecretStubServer
+{
+    public final static String PATH = "/rest/server.api";
+
+    public final static String DEFAULT_FIXTURES = "src/test/resources/fatsecret/foods.json";
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    // food.get responses without the enclosing object
+    private final List<JsonObject> foods = new ArrayList<>();
+
+    // null if signatures aren't checked
+    private final String consumerSecret;
+
+    private final Random random;
+
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile float slowRate;
+    private volatile long slowMs;
+    private volatile float errorRate;
+    private volatile int requestsPerSecond;
+
+    // start of the current rate limit window and requests in it
+    private long windowStart;
+    private int windowRequests;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failedRequests = new AtomicInteger();
+    private final AtomicInteger invalidSignatures = new AtomicInteger();
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+
+    /**
+     * @param fixtures       JSON array with foods in the format of the food.get response
+     * @param consumerSecret Secret that the signature of every request is checked with or <code>null</code>
+     * @param seed           Seed for latency jitter and errors
+     */
+    public FatSecretStubServer(File fixtures, String consumerSecret, long seed) throws IOException
+    {
+        this.consumerSecret = consumerSecret;
+        this.random = new Random(seed);
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(fixtures), StandardCharsets.UTF_8))
+        {
+            for (JsonElement food : new JsonParser().parse(reader).getAsJsonArray())
+                foods.add(food.getAsJsonObject());
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    handleRequest(exchange);
+                } finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        // simulated latency mustn't delay other requests
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Url for FatSecretAPIHelper
+     */
+    public String getUrlBase()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH + "?";
+    }
+
+    /**
+     * @param latencyMs Delay before every response
+     * @param jitterMs  Maximum random delay in addition to the latency
+     */
+    public void setLatency(long latencyMs, long jitterMs)
+    {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+    }
+
+    /**
+     * @param slowRate Fraction of requests that are delayed further, to simulate a slow tail
+     * @param slowMs   Additional delay of those requests
+     */
+    public void setSlowTail(float slowRate, long slowMs)
+    {
+        this.slowRate = slowRate;
+        this.slowMs = slowMs;
+    }
+
+    /**
+     * @param errorRate Fraction of requests that fail with status 500
+     */
+    public void setErrorRate(float errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param requestsPerSecond Requests beyond this in the same second are answered with an error, or 0 for no limit
+     */
+    public void setRateLimit(int requestsPerSecond)
+    {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public int getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return Requests that failed because of the error rate or the rate limit
+     */
+    public int getFailedRequests()
+    {
+        return failedRequests.get();
+    }
+
+    public int getInvalidSignatures()
+    {
+        return invalidSignatures.get();
+    }
+
+    /**
+     * @return Number of different connections that requests were sent over
+     */
+    public int getConnections()
+    {
+        return clientPorts.size();
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException
+    {
+        requests.incrementAndGet();
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+
+        Map<String, String> params = parseForm(readAll(exchange.getRequestBody()));
+
+        long delay;
+        boolean fail;
+        synchronized (random)
+        {
+            delay = latencyMs + (jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0);
+            if (slowRate > 0 && random.nextFloat() < slowRate)
+                delay += slowMs;
+            fail = errorRate > 0 && random.nextFloat() < errorRate;
+        }
+        if (delay > 0)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+
+        if (fail)
+        {
+            failedRequests.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+
+        JsonObject response;
+        if (consumerSecret != null && !hasValidSignature(params))
+        {
+            invalidSignatures.incrementAndGet();
+            response = error(8, "Invalid signature: oauth_signature '" + params.get("oauth_signature") + "'");
+        } else if (isRateLimited())
+        {
+            failedRequests.incrementAndGet();
+            response = error(12, "User is performing too many actions: please try again later");
+        } else if ("foods.search".equals(params.get("method")))
+        {
+            response = search(params.get("search_expression"), parseInt(params.get("max_results"), 20),
+                    parseInt(params.get("page_number"), 0));
+        } else if ("food.get".equals(params.get("method")))
+        {
+            response = get(params.get("food_id"));
+        } else
+        {
+            response = error(3, "Unknown method: '" + params.get("method") + "'");
+        }
+
+        byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private synchronized boolean isRateLimited()
+    {
+        if (requestsPerSecond <= 0)
+            return false;
+
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000)
+        {
+            windowStart = now;
+            windowRequests = 0;
+        }
+        return ++windowRequests > requestsPerSecond;
+    }
+
+    /**
+     * Finds all foods whose name and brand contain every word of the expression
+     */
+    private JsonObject search(String expression, int maxResults, int pageNumber)
+    {
+        String[] words = expression == null ? new String[0] : expression.toLowerCase().split("[^\\w]+");
+
+        List<JsonObject> matches = new ArrayList<>();
+        for (JsonObject food : foods)
+        {
+            String text = getString(food, "food_name") + " " + getString(food, "brand_name");
+            text = text.toLowerCase();
+            boolean match = true;
+            for (String word : words)
+                if (!word.isEmpty() && !text.contains(word))
+                    match = false;
+            if (match)
+                matches.add(food);
+        }
+
+        JsonObject result = new JsonObject();
+        int from = Math.min(matches.size(), pageNumber * maxResults);
+        int to = Math.min(matches.size(), from + maxResults);
+        List<JsonObject> page = matches.subList(from, to);
+        if (page.size() == 1)
+        {
+            result.add("food", toSearchEntry(page.get(0)));
+        } else if (page.size() > 1)
+        {
+            JsonArray array = new JsonArray();
+            for (JsonObject food : page)
+                array.add(toSearchEntry(food));
+            result.add("food", array);
+        }
+        result.addProperty("max_results", Integer.toString(maxResults));
+        result.addProperty("page_number", Integer.toString(pageNumber));
+        result.addProperty("total_results", Integer.toString(matches.size()));
+
+        JsonObject response = new JsonObject();
+        response.add("foods", result);
+        return response;
+    }
+
+    private static JsonObject toSearchEntry(JsonObject food)
+    {
+        JsonObject entry = new JsonObject();
+        for (String key : new String[]{"brand_name", "food_id", "food_name", "food_type", "food_url"})
+            if (food.has(key))
+                entry.add(key, food.get(key));
+
+        JsonElement servings = food.getAsJsonObject("servings").get("serving");
+        JsonObject serving = servings.isJsonArray() ? servings.getAsJsonArray().get(0).getAsJsonObject()
+                : servings.getAsJsonObject();
+        entry.addProperty("food_description", "Per " + getString(serving, "serving_description")
+                + " - Calories: " + getString(serving, "calories") + "kcal | Fat: " + getString(serving, "fat")
+                + "g | Carbs: " + getString(serving, "carbohydrate") + "g | Protein: " + getString(serving, "protein") + "g");
+        return entry;
+    }
+
+    private JsonObject get(String id)
+    {
+        for (JsonObject food : foods)
+        {
+            if (getString(food, "food_id").equals(id))
+            {
+                JsonObject response = new JsonObject();
+                response.add("food", food);
+                return response;
+            }
+        }
+        return error(106, "Invalid ID: food_id '" + id + "' does not exist");
+    }
+
+    private static JsonObject error(int code, String message)
+    {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        JsonObject response = new JsonObject();
+        response.add("error", error);
+        return response;
+    }
+
+    /**
+     * Recomputes the HMAC-SHA1 signature over the sorted, encoded parameters like the FatSecret server
+     */
+    private boolean hasValidSignature(Map<String, String> params)
+    {
+        String signature = params.get("oauth_signature");
+        if (signature == null)
+            return false;
+
+        List<String> encoded = new ArrayList<>();
+        for (Map.Entry<String, String> param : params.entrySet())
+            if (!param.getKey().equals("oauth_signature"))
+                encoded.add(param.getKey() + "=" + encode(param.getValue()));
+        Collections.sort(encoded);
+
+        String normalizedUrl = "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+        String signatureBase = "POST&" + encode(normalizedUrl) + "&" + encode(String.join("&", encoded));
+
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec((consumerSecret + "&").getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+            String expected = Base64.getEncoder().encodeToString(mac.doFinal(signatureBase.getBytes(StandardCharsets.UTF_8)));
+            return expected.equals(signature);
+        } catch (Exception e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static String encode(String value)
+    {
+        try
+        {
+            return URLEncoder.encode(value, "utf-8")
+                    .replace("+", "%20")
+                    .replace("!", "%21")
+                    .replace("*", "%2A")
+                    .replace("(", "%28")
+                    .replace(")", "%29");
+        } catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException
+    {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : body.split("&"))
+        {
+            if (pair.isEmpty())
+                continue;
+            String[] comps = pair.split("=", 2);
+            params.put(URLDecoder.decode(comps[0], "utf-8"), comps.length > 1 ? URLDecoder.decode(comps[1], "utf-8") : "");
+        }
+        return params;
+    }
+
+    private static String getString(JsonObject object, String key)
+    {
+        return object.has(key) ? object.get(key).getAsString() : "";
+    }
+
+    private static int parseInt(String s, int defaultValue)
+    {
+        try
+        {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Runs the server until the process is killed, e. g. to point the console at it
+     *
+     * @param args Optional: latency in ms, jitter in ms, error rate, requests per second
+     */
+    public static void main(String[] args) throws IOException
+    {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        FatSecretStubServer server = new FatSecretStubServer(new File(DEFAULT_FIXTURES), null, 0);
+        if (args.length >= 2)
+            server.setLatency(Long.parseLong(args[0]), Long.parseLong(args[1]));
+        if (args.length >= 3)
+            server.setErrorRate(Float.parseFloat(args[2]));
+        if (args.length >= 4)
+            server.setRateLimit(Integer.parseInt(args[3]));
+        server.start();
+        System.out.println("FatSecret stub listening on " + server.getUrlBase());
+    }
+}
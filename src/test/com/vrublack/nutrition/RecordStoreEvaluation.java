@@ -0,0 +1,268 @@
+package com.vrublack.nutrition;
+
+
+import com.vrublack.nutrition.console.LogRecordManager;
+import com.vrublack.nutrition.core.*;
+import com.vrublack.nutrition.core.userdb.UserFoodDatabase;
+import com.vrublack.nutrition.core.userdb.UserFoodItem;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Checks that records survive the binary record format, including the conversion of records that were written with
+ * Java serialization, and that the log file keeps them when it is reopened with its footer, after the application was
+ * killed in the middle of a write and after compaction. Everything is written to a temporary directory.
+ */
+public class RecordStoreEvaluation
+{
+    private final static int FIRST_DAY = 19000;
+
+    private final static int DAYS = 60;
+
+    private final File directory;
+
+    private int failures;
+
+
+    public RecordStoreEvaluation() throws IOException
+    {
+        directory = Files.createTempDirectory("records").toFile();
+    }
+
+    /**
+     * @param day Epoch day
+     * @param version Makes the records of the same day differ
+     */
+    private static DailyRecord createRecord(int day, int version)
+    {
+        Map<Specification.NutrientType, NutrientQuantity> nutrients = new HashMap<>();
+        nutrients.put(Specification.NutrientType.Protein, new NutrientQuantity(20 + version, NutrientQuantity.Unit.g));
+        nutrients.put(Specification.NutrientType.Fat, new NutrientQuantity(5, NutrientQuantity.Unit.g));
+        nutrients.put(Specification.NutrientType.Calcium, new NutrientQuantity(120, NutrientQuantity.Unit.Mg));
+        String description = "Granola, homemade, version " + version;
+        UserFoodItem item = new UserFoodItem("u" + day, description, UserFoodDatabase.parseDescriptionComps(description),
+                nutrients, 450, 80, new UserFoodItem.CommonMeasure[]{new UserFoodItem.CommonMeasure("cup", 1, 60)});
+
+        DirectSpecification direct = new DirectSpecification("d" + day);
+        direct.setDescription("Coffee, \"black\"");
+        direct.setCalories(2 + version);
+        direct.putNutrient(Specification.NutrientType.Potassium, new NutrientQuantity(116, NutrientQuantity.Unit.Mg));
+
+        SimpleCalendar date = SimpleCalendar.fromEpochDay(day);
+        DailyRecord record = new DailyRecord(date);
+        record.add(new FoodSpecification(item, 1.5f, "cup"), new SimpleCalendar(date.getDay(), date.getMonth(),
+                date.getYear(), 8, 15));
+        record.addMealCheckpoint(0, "breakfast");
+        record.add(direct, null);
+        return record;
+    }
+
+    /**
+     * @return Everything the formats store about the record
+     */
+    private static String describe(DailyRecord record)
+    {
+        StringBuilder description = new StringBuilder(record.getDate().format());
+        List<Pair<Specification, SimpleCalendar>> entries = record.asList();
+        for (int i = 0; i < entries.size(); i++)
+        {
+            Specification specification = entries.get(i).first;
+            description.append('\n').append(specification.getDescription())
+                    .append(" | ").append(entries.get(i).second != null ? entries.get(i).second.fullFormat() : "-")
+                    .append(" | ").append(specification.getCalories()).append(" kcal");
+            for (Specification.NutrientType type : Specification.NutrientType.values())
+            {
+                NutrientQuantity quantity = specification.getNutrient(type);
+                if (quantity != null)
+                    description.append(" | ").append(type).append(' ').append(quantity.getAmountInUnit())
+                            .append(quantity.getUnit());
+            }
+            if (specification instanceof FoodSpecification)
+            {
+                FoodItem item = ((FoodSpecification) specification).getFoodItem();
+                description.append(" | ").append(RecordCodec.getSource(item)).append(':').append(item.getId());
+            }
+            if (record.getMealCheckpoint(i) != null)
+                description.append(" | meal ").append(record.getMealCheckpoint(i));
+        }
+        return description.toString();
+    }
+
+    private void check(String name, boolean passed)
+    {
+        System.out.println((passed ? "OK     " : "FAILED ") + name);
+        if (!passed)
+            failures++;
+    }
+
+    /**
+     * @return Whether the manager contains exactly the expected records
+     */
+    private static boolean matches(RecordManager recordManager, Map<Integer, DailyRecord> expected)
+    {
+        if (recordManager.size() != expected.size())
+            return false;
+        for (Map.Entry<Integer, DailyRecord> entry : expected.entrySet())
+        {
+            DailyRecord record = recordManager.loadRecord(SimpleCalendar.fromEpochDay(entry.getKey()).format());
+            if (record == null || !describe(record).equals(describe(entry.getValue())))
+                return false;
+        }
+        return true;
+    }
+
+    public void evaluateCodec() throws Exception
+    {
+        System.out.println("--EVALUATING RECORD FORMAT--");
+
+        RecordCodec codec = new RecordCodec(null);
+        DailyRecord record = createRecord(FIRST_DAY, 0);
+        byte[] encoded = codec.encode(record);
+        DailyRecord decoded = codec.decode(encoded);
+        check("Round trip of food and direct entries", describe(decoded).equals(describe(record)));
+        check("Decoded record is clean", !decoded.isDirty());
+        check("Encoding a decoded record gives the same bytes", Arrays.equals(codec.encode(decoded), encoded));
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized))
+        {
+            out.writeObject(record);
+        }
+        byte[] legacy = serialized.toByteArray();
+        check("Serialized record is recognized as legacy", RecordCodec.isLegacy(legacy) && !RecordCodec.isLegacy(encoded));
+
+        DailyRecord converted = codec.decode(legacy);
+        check("Legacy record can be converted without a resolver", codec.canEncode(converted));
+        DailyRecord migrated = codec.decode(codec.encode(converted));
+        check("Converted record keeps entries and item reference", describe(migrated).equals(describe(record)));
+
+        System.out.printf("Encoded: %d bytes, serialized: %d bytes\n", encoded.length, legacy.length);
+    }
+
+    public void evaluateLog() throws Exception
+    {
+        System.out.println("--EVALUATING RECORD LOG--");
+
+        File file = new File(directory, "records.log");
+        Map<Integer, DailyRecord> expected = new TreeMap<>();
+
+        LogRecordManager log = new LogRecordManager(file, null);
+        for (int day = FIRST_DAY; day < FIRST_DAY + DAYS; day++)
+        {
+            DailyRecord record = createRecord(day, 0);
+            log.saveRecord(record);
+            expected.put(day, record);
+        }
+        log.close();
+
+        log = new LogRecordManager(file, null);
+        check("Reopened with footer", matches(log, expected));
+
+        // later versions of some days, then the application is killed while it appends an entry
+        for (int day = FIRST_DAY; day < FIRST_DAY + DAYS; day += 3)
+        {
+            DailyRecord record = createRecord(day, 1);
+            log.saveRecord(record);
+            expected.put(day, record);
+        }
+        log.close();
+        long complete = removeFooter(file);
+        byte[] torn = createTornEntry(FIRST_DAY + DAYS);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.seek(complete);
+            raf.write(torn);
+        }
+
+        LogRecordManager readOnly = new LogRecordManager(file, null, true);
+        check("Read-only store doesn't remove the torn tail",
+                matches(readOnly, expected) && file.length() == complete + torn.length);
+
+        log = new LogRecordManager(file, null);
+        check("Reopened after torn tail", matches(log, expected));
+        check("Torn tail was removed", log.getFileSize() == complete);
+
+        for (int i = 0; i < 20; i++)
+        {
+            for (int day = FIRST_DAY; day < FIRST_DAY + DAYS; day += 2)
+            {
+                DailyRecord record = createRecord(day, 2 + i);
+                log.saveRecord(record);
+                expected.put(day, record);
+            }
+        }
+        long before = log.getFileSize();
+        log.compact();
+        long after = log.getFileSize();
+        check("Compaction only keeps the latest entries", after < before && log.getLiveBytes() < after);
+        check("Records after compaction", matches(log, expected));
+        log.close();
+
+        log = new LogRecordManager(file, null);
+        check("Reopened after compaction", matches(log, expected) && log.getFileSize() == after);
+        log.close();
+
+        System.out.printf("Log: %d bytes before compaction, %d bytes after\n", before, after);
+    }
+
+    /**
+     * @return First half of a record entry of the log
+     */
+    private static byte[] createTornEntry(int day) throws IOException
+    {
+        byte[] encoded = new RecordCodec(null).encode(createRecord(day, 0));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // payload length, record type and day
+        out.writeInt(4 + encoded.length);
+        out.writeByte(1);
+        out.writeInt(day);
+        out.write(encoded, 0, encoded.length / 2);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Removes the footer as if the application had been killed before closing the log
+     *
+     * @return New length of the file
+     */
+    private static long removeFooter(File file) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            // footer offset and magic number
+            raf.seek(raf.length() - 12);
+            long offset = raf.readLong();
+            raf.setLength(offset);
+            return offset;
+        }
+    }
+
+    private void deleteDirectory()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        RecordStoreEvaluation eval = new RecordStoreEvaluation();
+        try
+        {
+            eval.evaluateCodec();
+            eval.evaluateLog();
+        } finally
+        {
+            eval.deleteDirectory();
+        }
+
+        System.out.println(eval.failures == 0 ? "All checks passed" : eval.failures + " checks failed");
+        if (eval.failures > 0)
+            System.exit(1);
+    }
+}